@@ -0,0 +1,208 @@
+package wfphantom.instancesync;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded HTTP server that mimics the Modrinth and ForgeCDN URL layouts and serves synthetic jars.
+ * <p>
+ * Every host is served under its own path prefix, so {@link #hosts()} can be handed straight to
+ * {@link DownloadManager}:
+ * <pre>
+ * /cdn.modrinth.com/data/&lt;mod-id&gt;/versions/&lt;version&gt;/&lt;file&gt;
+ * /mediafilez.forgecdn.net/files/&lt;a&gt;/&lt;b&gt;/&lt;file&gt;
+ * /edge.forgecdn.net/files/&lt;a&gt;/&lt;b&gt;/&lt;file&gt;
+ * </pre>
+ */
+public class FakeCdn implements AutoCloseable {
+    private static final String MODRINTH = "/cdn.modrinth.com";
+    private static final String MEDIAFILEZ = "/mediafilez.forgecdn.net";
+    private static final String EDGE = "/edge.forgecdn.net";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong notFound = new AtomicLong();
+    private final Set<String> stalled = ConcurrentHashMap.newKeySet();
+
+    private volatile int fileSize = 64 * 1024;
+    private volatile long latencyMillis;
+    private volatile long bytesPerSecond;
+    private volatile double mediafilezMissingRate;
+    private volatile double stallRate;
+    private volatile long stallMillis = 30_000;
+
+    public FakeCdn() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "fake-cdn");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Size in bytes of every served file.
+     */
+    public FakeCdn fileSize(int fileSize) {
+        this.fileSize = fileSize;
+        return this;
+    }
+
+    /**
+     * Delay before the response headers are sent, simulating round-trip time.
+     */
+    public FakeCdn latency(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Per-connection bandwidth cap, 0 for unlimited.
+     */
+    public FakeCdn bandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Fraction of CurseForge files that 404 on mediafilez and only exist on edge.
+     */
+    public FakeCdn mediafilezMissingRate(double rate) {
+        this.mediafilezMissingRate = rate;
+        return this;
+    }
+
+    /**
+     * Fraction of files whose first transfer stops sending halfway through the body for {@code millis}.
+     */
+    public FakeCdn stalls(double rate, long millis) {
+        this.stallRate = rate;
+        this.stallMillis = millis;
+        return this;
+    }
+
+    public DownloadManager.CdnHosts hosts() {
+        String base = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+        return new DownloadManager.CdnHosts(base + MODRINTH, base + MEDIAFILEZ, base + EDGE);
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long bytesServed() {
+        return bytesServed.get();
+    }
+
+    public long notFound() {
+        return notFound.get();
+    }
+
+    public void resetStats() {
+        requests.set(0);
+        bytesServed.set(0);
+        notFound.set(0);
+        stalled.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), StandardCharsets.UTF_8);
+
+            boolean known = path.startsWith(MODRINTH + "/data/") || path.startsWith(MEDIAFILEZ + "/files/") || path.startsWith(EDGE + "/files/");
+            String filename = path.substring(path.lastIndexOf('/') + 1);
+            if (!known || filename.isEmpty() || (path.startsWith(MEDIAFILEZ) && roll(filename, "missing") < mediafilezMissingRate)) {
+                notFound.incrementAndGet();
+                sleep(latencyMillis);
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            sleep(latencyMillis);
+            boolean head = exchange.getRequestMethod().equalsIgnoreCase("HEAD");
+            exchange.getResponseHeaders().set("Content-Type", "application/java-archive");
+            if (head) exchange.getResponseHeaders().set("Content-Length", String.valueOf(fileSize));
+            exchange.sendResponseHeaders(200, head ? -1 : fileSize);
+            if (head) return;
+
+            boolean stall = roll(path, "stall") < stallRate && stalled.add(path);
+            byte[] chunk = new byte[8192];
+            fill(chunk, filename);
+            long start = System.nanoTime();
+            long sent = 0;
+            try (OutputStream out = exchange.getResponseBody()) {
+                while (sent < fileSize) {
+                    int len = (int) Math.min(chunk.length, fileSize - sent);
+                    out.write(chunk, 0, len);
+                    sent += len;
+                    bytesServed.addAndGet(len);
+                    if (stall && sent >= fileSize / 2) {
+                        out.flush();
+                        stall = false;
+                        sleep(stallMillis);
+                    }
+                    if (bytesPerSecond > 0) {
+                        long expectedNanos = sent * 1_000_000_000L / bytesPerSecond;
+                        long ahead = expectedNanos - (System.nanoTime() - start);
+                        if (ahead > 0) sleep(ahead / 1_000_000L);
+                    }
+                }
+            }
+        } catch (IOException ignored) {
+            // Client went away, e.g. it gave up on a stalled transfer
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Deterministic pseudo-random number in [0, 1) for a key, so scenarios are reproducible between runs.
+     */
+    private static double roll(String key, String salt) {
+        long h = (key + "#" + salt).hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 31;
+        return (h >>> 11) * 0x1.0p-53;
+    }
+
+    private static void fill(byte[] buf, String seed) {
+        int h = seed.hashCode();
+        for (int i = 0; i < buf.length; i++) {
+            h = h * 31 + i;
+            buf[i] = (byte) h;
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package wfphantom.instancesync;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end sync benchmark against {@link FakeCdn}, so download engine changes can be compared
+ * between releases without touching the real Modrinth and ForgeCDN.
+ * <p>
+ * Every scenario generates a modlist with the given number of entries (half Modrinth, half CurseForge),
+ * runs a full sync into a fresh temporary instance and reports wall time, throughput and peak heap.
+ * With {@code --runs}, the sync is repeated in the same instance to measure warm runs.
+ */
+public final class SyncBenchmark {
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {100, 1000, 5000};
+        int fileSize = 64 * 1024;
+        long latency = 20;
+        long bandwidth = 0;
+        double missing = 0.1;
+        double stallRate = 0;
+        long stallMillis = 5000;
+        int runs = 1;
+        boolean verbose = false;
+        List<String> syncArgs = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--sizes=")) {
+                String[] parts = arg.substring("--sizes=".length()).split(",");
+                sizes = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) sizes[i] = Integer.parseInt(parts[i].trim());
+            } else if (arg.startsWith("--fileSize=")) {
+                fileSize = Integer.parseInt(arg.substring("--fileSize=".length()));
+            } else if (arg.startsWith("--latency=")) {
+                latency = Long.parseLong(arg.substring("--latency=".length()));
+            } else if (arg.startsWith("--bandwidth=")) {
+                bandwidth = Long.parseLong(arg.substring("--bandwidth=".length()));
+            } else if (arg.startsWith("--missing=")) {
+                missing = Double.parseDouble(arg.substring("--missing=".length()));
+            } else if (arg.startsWith("--stalls=")) {
+                stallRate = Double.parseDouble(arg.substring("--stalls=".length()));
+            } else if (arg.startsWith("--stallMillis=")) {
+                stallMillis = Long.parseLong(arg.substring("--stallMillis=".length()));
+            } else if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(arg.substring("--runs=".length()));
+            } else if (arg.equals("--verbose")) {
+                verbose = true;
+            } else {
+                // Anything else is passed through to the sync, e.g. future download engine options
+                syncArgs.add(arg);
+            }
+        }
+
+        System.out.printf("Fake CDN: %d byte files, %dms latency, %s bandwidth, %.0f%% missing on mediafilez, %.0f%% stalls (%dms)%n%n",
+                fileSize, latency, bandwidth > 0 ? bandwidth + " B/s" : "unlimited", missing * 100, stallRate * 100, stallMillis);
+        System.out.printf("%8s %5s %10s %10s %12s %10s %10s %10s%n", "entries", "run", "wall (s)", "files", "MiB/s", "requests", "404s", "heap MiB");
+
+        try (FakeCdn cdn = new FakeCdn()) {
+            cdn.fileSize(fileSize).latency(latency).bandwidth(bandwidth).mediafilezMissingRate(missing).stalls(stallRate, stallMillis);
+
+            for (int size : sizes) {
+                Path dir = Files.createTempDirectory("instancesync-bench-");
+                try {
+                    writeModlist(dir.resolve(InstanceSync.MODLIST), size);
+
+                    List<String> runArgs = new ArrayList<>(syncArgs);
+                    runArgs.add("--option=1");
+                    runArgs.add("--modrinthUrl=" + cdn.hosts().modrinth());
+                    runArgs.add("--curseforgeUrl=" + cdn.hosts().curseforge());
+                    runArgs.add("--curseforgeFallbackUrl=" + cdn.hosts().curseforgeFallback());
+
+                    // Later runs start from an empty mods folder but keep the instance state, like CDN routes
+                    for (int run = 1; run <= runs; run++) {
+                        if (run > 1) deleteRecursively(dir.resolve("mods"));
+                        cdn.resetStats();
+
+                        System.gc();
+                        resetPeakHeap();
+
+                        PrintStream stdout = System.out;
+                        if (!verbose) System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                        long start = System.nanoTime();
+                        try {
+                            InstanceSync.sync(dir.toFile(), runArgs.toArray(new String[0]));
+                        } finally {
+                            System.setOut(stdout);
+                        }
+                        double secs = (System.nanoTime() - start) / 1e9;
+
+                        long files = countCompleteFiles(dir.resolve("mods"), fileSize);
+                        double mib = files * (double) fileSize / (1024 * 1024);
+                        System.out.printf("%8d %5d %10.2f %10d %12.2f %10d %10d %10.1f%n",
+                                size, run, secs, files, mib / secs, cdn.requests(), cdn.notFound(), peakHeap() / (1024.0 * 1024.0));
+                    }
+                } finally {
+                    deleteRecursively(dir);
+                }
+            }
+        }
+    }
+
+    private static void writeModlist(Path modlist, int entries) throws IOException {
+        Gson gson = new Gson();
+        try (BufferedWriter out = Files.newBufferedWriter(modlist, StandardCharsets.UTF_8)) {
+            out.write("{\n\"loader\": [\"\", \"\"],\n\"mods\":[\n");
+            for (int i = 0; i < entries; i++) {
+                String[] row;
+                if (i % 2 == 0) {
+                    row = new String[]{"modrinth-mod-" + i + ".jar", String.format("Mr%06d", i), String.format("v%07d", i), "both"};
+                } else {
+                    row = new String[]{"curse mod " + i + ".jar", String.valueOf(200000 + i), String.valueOf(5000000 + i), "both"};
+                }
+                out.write("  " + gson.toJson(row));
+                if (i < entries - 1) out.write(",");
+                out.write("\n");
+            }
+            out.write("],\n\"shaderpacks\":[],\n\"resourcepacks\":[],\n\"datapacks\":[]\n}");
+        }
+    }
+
+    private static long countCompleteFiles(Path dir, long fileSize) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toFile().isFile() && p.toFile().length() == fileSize).count();
+        }
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                File f = p.toFile();
+                if (!f.delete()) System.out.println("Failed to delete " + f);
+            }
+        }
+    }
+}
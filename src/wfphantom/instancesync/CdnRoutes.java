@@ -0,0 +1,244 @@
+package wfphantom.instancesync;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which CDN host worked for which file and how each host performed, so later runs don't
+ * pay for the same 404 twice and prefer the faster host.
+ * <p>
+ * Files are keyed by their path below the host base URL (like {@code /files/1234/567/foo.jar}),
+ * hosts by their base URL.
+ */
+public class CdnRoutes {
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final long MAX_SAMPLES = 100;
+    private static final int MIN_SAMPLES = 3;
+
+    private static class HostStats {
+        long successes;
+        long failures;
+        double avgMillis;
+    }
+
+    private static class State {
+        Map<String, Set<String>> missing = new ConcurrentHashMap<>();
+        Map<String, HostStats> hosts = new ConcurrentHashMap<>();
+    }
+
+    private final Path file;
+    private final State state;
+
+    // What this process learned since loading, merged into whatever is on disk when saving
+    private final Map<String, Set<String>> missingSinceLoad = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> foundSinceLoad = new ConcurrentHashMap<>();
+    private final Map<String, HostStats> hostsSinceLoad = new ConcurrentHashMap<>();
+
+    private CdnRoutes(Path file, State state) {
+        this.file = file;
+        this.state = state;
+    }
+
+    /**
+     * A routing table that only lives for this run.
+     */
+    public CdnRoutes() {
+        this(null, new State());
+    }
+
+    public static CdnRoutes load(Path file) {
+        State state = null;
+        try {
+            state = read(file);
+        } catch (IOException | JsonParseException e) {
+            System.out.println("Failed to read CDN routes, starting fresh: " + e.getMessage());
+        }
+        return new CdnRoutes(file, state == null ? new State() : state);
+    }
+
+    private static State read(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) return null;
+        State state = new Gson().fromJson(Files.readString(file, StandardCharsets.UTF_8), State.class);
+        if (state == null) return null;
+
+        // Gson fills in plain maps, these are written from several download threads
+        state.missing = state.missing == null ? new ConcurrentHashMap<>() : new ConcurrentHashMap<>(state.missing);
+        state.missing.replaceAll((path, bases) -> {
+            Set<String> set = ConcurrentHashMap.newKeySet();
+            set.addAll(bases);
+            return set;
+        });
+        state.hosts = state.hosts == null ? new ConcurrentHashMap<>() : new ConcurrentHashMap<>(state.hosts);
+        return state;
+    }
+
+    /**
+     * Writes the table, forgetting the missing hosts of every path outside {@code referencedPaths}
+     * so files dropped from the modlist don't pile up.
+     * <p>
+     * A prefetch and a sync can run at the same time, so what this process learned is merged into the
+     * file as it is now rather than overwriting it with the state loaded at startup.
+     */
+    public synchronized void save(Set<String> referencedPaths) {
+        if (file == null) {
+            state.missing.keySet().retainAll(referencedPaths);
+            return;
+        }
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path lockFile = file.resolveSibling(file.getFileName() + ".lock");
+            try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = channel.lock()) {
+                State merged = null;
+                try {
+                    merged = read(file);
+                } catch (JsonParseException e) {
+                    System.out.println("Failed to read CDN routes, overwriting them: " + e.getMessage());
+                }
+                if (merged == null) merged = new State();
+                merge(merged);
+                merged.missing.keySet().retainAll(referencedPaths);
+
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                Gson gson = new GsonBuilder().setPrettyPrinting().create();
+                Files.writeString(tmp, gson.toJson(merged), StandardCharsets.UTF_8);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                // What was learned is on disk now, don't add it again on the next save
+                state.missing = merged.missing;
+                state.hosts = merged.hosts;
+                missingSinceLoad.clear();
+                foundSinceLoad.clear();
+                hostsSinceLoad.clear();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to save CDN routes: " + e.getMessage());
+        }
+    }
+
+    private void merge(State into) {
+        missingSinceLoad.forEach((path, bases) -> into.missing.computeIfAbsent(path, p -> ConcurrentHashMap.newKeySet()).addAll(bases));
+        foundSinceLoad.forEach((path, bases) -> {
+            Set<String> missingFrom = into.missing.get(path);
+            if (missingFrom == null) return;
+            missingFrom.removeAll(bases);
+            if (missingFrom.isEmpty()) into.missing.remove(path);
+        });
+        hostsSinceLoad.forEach((base, learned) -> {
+            HostStats stats = into.hosts.computeIfAbsent(base, b -> new HostStats());
+            synchronized (learned) {
+                long successes = stats.successes + learned.successes;
+                if (learned.successes > 0) {
+                    stats.avgMillis = (stats.avgMillis * stats.successes + learned.avgMillis * learned.successes) / successes;
+                }
+                stats.successes = successes;
+                stats.failures += learned.failures;
+            }
+            decay(stats);
+        });
+    }
+
+    /**
+     * Orders the base URLs to try for a path: hosts the file is known to be missing from go last,
+     * then unhealthy hosts, and between healthy hosts the faster one goes first.
+     */
+    public List<String> order(String path, String... bases) {
+        Set<String> missingFrom = state.missing.getOrDefault(path, Set.of());
+        List<String> ordered = new ArrayList<>(List.of(bases));
+        ordered.sort(Comparator
+                .comparing((String base) -> missingFrom.contains(base))
+                .thenComparing(base -> !isHealthy(base))
+                .thenComparingDouble(this::latencyOf));
+        return ordered;
+    }
+
+    public void recordMissing(String base, String path) {
+        state.missing.computeIfAbsent(path, p -> ConcurrentHashMap.newKeySet()).add(base);
+        missingSinceLoad.computeIfAbsent(path, p -> ConcurrentHashMap.newKeySet()).add(base);
+        Set<String> foundAt = foundSinceLoad.get(path);
+        if (foundAt != null) foundAt.remove(base);
+    }
+
+    public void recordFound(String base, String path) {
+        foundSinceLoad.computeIfAbsent(path, p -> ConcurrentHashMap.newKeySet()).add(base);
+        Set<String> missingAt = missingSinceLoad.get(path);
+        if (missingAt != null) missingAt.remove(base);
+
+        Set<String> missingFrom = state.missing.get(path);
+        if (missingFrom == null) return;
+        missingFrom.remove(base);
+        if (missingFrom.isEmpty()) state.missing.remove(path);
+    }
+
+    public void recordSuccess(String base, long latencyMillis) {
+        addSuccess(state.hosts.computeIfAbsent(base, b -> new HostStats()), latencyMillis, true);
+        // Not decayed, these are counts to add to the file's
+        addSuccess(hostsSinceLoad.computeIfAbsent(base, b -> new HostStats()), latencyMillis, false);
+    }
+
+    public void recordFailure(String base) {
+        addFailure(state.hosts.computeIfAbsent(base, b -> new HostStats()), true);
+        addFailure(hostsSinceLoad.computeIfAbsent(base, b -> new HostStats()), false);
+    }
+
+    private static void addSuccess(HostStats stats, long latencyMillis, boolean decay) {
+        synchronized (stats) {
+            stats.avgMillis = stats.successes == 0 ? latencyMillis : stats.avgMillis + LATENCY_WEIGHT * (latencyMillis - stats.avgMillis);
+            stats.successes++;
+            if (decay) decay(stats);
+        }
+    }
+
+    private static void addFailure(HostStats stats, boolean decay) {
+        synchronized (stats) {
+            stats.failures++;
+            if (decay) decay(stats);
+        }
+    }
+
+    private boolean isHealthy(String base) {
+        HostStats stats = state.hosts.get(base);
+        if (stats == null) return true;
+        synchronized (stats) {
+            long total = stats.successes + stats.failures;
+            return total < MIN_SAMPLES || stats.failures * 2 < total;
+        }
+    }
+
+    /**
+     * Average time to first byte. Hosts without enough samples go after measured ones and keep their given order.
+     */
+    private double latencyOf(String base) {
+        HostStats stats = state.hosts.get(base);
+        if (stats == null) return Double.MAX_VALUE;
+        synchronized (stats) {
+            return stats.successes < MIN_SAMPLES ? Double.MAX_VALUE : stats.avgMillis;
+        }
+    }
+
+    /**
+     * Halves old counts once there are enough of them, so a host that recovers isn't held back by its history.
+     */
+    private static void decay(HostStats stats) {
+        if (stats.successes + stats.failures > MAX_SAMPLES) {
+            stats.successes /= 2;
+            stats.failures /= 2;
+        }
+    }
+}
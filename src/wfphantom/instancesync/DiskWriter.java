@@ -0,0 +1,191 @@
+package wfphantom.instancesync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Disk stage of the download pipeline. Network workers hand over the chunks they read and go back to
+ * reading, while a small pool of disk threads writes them out, so slow disks aren't hit by every
+ * download at once.
+ * <p>
+ * The chunks of one file are always written in order by one thread at a time. The total size of
+ * chunks waiting to be written is capped, once it's reached network workers block until the disk catches up.
+ */
+public class DiskWriter implements AutoCloseable {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FAIR_SHARE = 16;
+
+    private final ExecutorService disk;
+    private final Semaphore budget;
+
+    public DiskWriter(int threads, long maxBufferedBytes) {
+        AtomicInteger count = new AtomicInteger();
+        this.disk = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "instancesync-disk-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // Never below one chunk, or a single chunk could wait for permits forever
+        this.budget = new Semaphore((int) Math.min(Integer.MAX_VALUE, Math.max(CHUNK_SIZE, maxBufferedBytes)));
+    }
+
+    public Sink open(File file) {
+        return new Sink(file);
+    }
+
+    @Override
+    public void close() {
+        disk.shutdown();
+    }
+
+    /**
+     * Ordered writer for one file. Only the thread that opened it may call {@link #write}, {@link #finish} and {@link #abort}.
+     */
+    public class Sink {
+        private record Chunk(byte[] data, int length) {}
+
+        private final File file;
+        private final Queue<Chunk> queue = new ArrayDeque<>();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private FileOutputStream out;
+        private boolean draining;
+        private boolean finished;
+        private volatile boolean aborted;
+        private volatile IOException failure;
+
+        private Sink(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Queues a chunk for writing, blocking while too many bytes are buffered. The array is handed over and must not be reused.
+         */
+        public void write(byte[] data, int length) throws IOException, InterruptedException {
+            if (failure != null) throw failure;
+            budget.acquire(length);
+            enqueue(new Chunk(data, length));
+        }
+
+        /**
+         * Waits for every queued chunk to reach the disk and closes the file.
+         */
+        public void finish() throws IOException, InterruptedException {
+            synchronized (this) {
+                finished = true;
+                scheduleIfIdle();
+            }
+            try {
+                done.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException io) throw io;
+                throw new IOException(e.getCause());
+            }
+        }
+
+        /**
+         * Drops whatever is still queued and closes the file. The caller deletes it.
+         */
+        public void abort() {
+            aborted = true;
+            synchronized (this) {
+                finished = true;
+                scheduleIfIdle();
+            }
+            try {
+                done.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ignored) {
+            }
+        }
+
+        private void enqueue(Chunk chunk) {
+            synchronized (this) {
+                queue.add(chunk);
+                scheduleIfIdle();
+            }
+        }
+
+        private void scheduleIfIdle() {
+            if (draining || done.isDone()) return;
+            draining = true;
+            submitDrain();
+        }
+
+        /**
+         * Must be called holding the lock.
+         */
+        private void submitDrain() {
+            try {
+                disk.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // The writer was closed, fail the file instead of leaving finish and abort waiting for a drain that never runs
+                draining = false;
+                if (failure == null) failure = new IOException("Disk writer is closed");
+                for (Chunk chunk = queue.poll(); chunk != null; chunk = queue.poll()) {
+                    budget.release(chunk.length());
+                }
+                try {
+                    if (out != null) out.close();
+                } catch (IOException ignored) {
+                }
+                done.completeExceptionally(failure);
+            }
+        }
+
+        private void drain() {
+            for (int written = 0; ; written++) {
+                Chunk chunk;
+                synchronized (this) {
+                    if (written == FAIR_SHARE) {
+                        // Let the other files queued on this thread have a turn
+                        submitDrain();
+                        return;
+                    }
+                    chunk = queue.poll();
+                    if (chunk == null) {
+                        draining = false;
+                        if (finished) complete();
+                        return;
+                    }
+                }
+
+                try {
+                    if (!aborted && failure == null) {
+                        if (out == null) out = new FileOutputStream(file);
+                        out.write(chunk.data(), 0, chunk.length());
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    budget.release(chunk.length());
+                }
+            }
+        }
+
+        private void complete() {
+            try {
+                if (out == null && failure == null && !aborted) out = new FileOutputStream(file);
+                if (out != null) out.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+            if (failure != null) {
+                done.completeExceptionally(failure);
+            } else {
+                done.complete(null);
+            }
+        }
+    }
+}
@@ -1,17 +1,39 @@
 package wfphantom.instancesync;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.io.IOException;
 
 import com.google.gson.JsonArray;
@@ -23,15 +45,119 @@ import wfphantom.instancesync.Instance.Addon;
 
 public class DownloadManager {
 
+    /**
+     * Base URLs the download URLs are built from. Can be pointed at a mirror or a local fake CDN.
+     */
+    public record CdnHosts(String modrinth, String curseforge, String curseforgeFallback) {
+        public static final CdnHosts DEFAULT = new CdnHosts(
+                "https://cdn.modrinth.com",
+                "https://mediafilez.forgecdn.net",
+                "https://edge.forgecdn.net"
+        );
+
+        public CdnHosts {
+            modrinth = withoutTrailingSlash(modrinth);
+            curseforge = withoutTrailingSlash(curseforge);
+            curseforgeFallback = withoutTrailingSlash(curseforgeFallback);
+        }
+
+        private static String withoutTrailingSlash(String url) {
+            return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        }
+    }
+
+    /**
+     * Network limits for a sync. A transfer slower than {@code minBytesPerSecond} over {@code stallWindowMillis}
+     * is treated as stalled and retried, and nothing new is started after the {@code deadline}
+     * (epoch millis, 0 for none). Prefetched files are staged per content folder under {@code cacheDir}.
+     * Without {@code routes}, CDN outcomes are only remembered for the lifetime of the manager.
+     * {@code networkThreads} download while {@code diskThreads} write, with at most {@code maxBufferedBytes}
+     * read but not yet written.
+     */
+    public record Options(CdnHosts hosts, int connectTimeoutMillis, int readTimeoutMillis, long minBytesPerSecond,
+                          int stallWindowMillis, int retries, long deadline, File cacheDir, CdnRoutes routes,
+                          int networkThreads, int diskThreads, long maxBufferedBytes) {
+        public static final Options DEFAULT = new Options(CdnHosts.DEFAULT, 15_000, 30_000, 1024, 30_000, 2, 0, null, null,
+                10, 2, 32L * 1024 * 1024);
+
+        public boolean isPastDeadline() {
+            return deadline > 0 && System.currentTimeMillis() >= deadline;
+        }
+
+        /**
+         * The same settings with the staging cache and CDN routes of one instance.
+         */
+        public Options forInstance(File cacheDir, CdnRoutes routes) {
+            return new Options(hosts, connectTimeoutMillis, readTimeoutMillis, minBytesPerSecond, stallWindowMillis, retries, deadline,
+                    cacheDir, routes, networkThreads, diskThreads, maxBufferedBytes);
+        }
+    }
+
+    /**
+     * What happened to a single file during a run.
+     */
+    public enum Status { UP_TO_DATE, DOWNLOADED, PREFETCHED, SKIPPED, PENDING, FAILED, RENAMED, DELETED }
+
+    public record Outcome(String label, String filename, Status status, String message) {}
+
+    /**
+     * A file for {@link #downloadFiles}, checked against {@code size} and {@code sha1} unless they're -1 and null.
+     */
+    public record FileDownload(String url, long size, String sha1) {}
+
+    /**
+     * Hosts a modlist row can be stamped with by {@code --dev} validation.
+     */
+    public static final String HOST_MODRINTH = "modrinth";
+    public static final String HOST_MEDIAFILEZ = "mediafilez";
+    public static final String HOST_EDGE = "edge";
+
+    private static final ScheduledExecutorService STALL_WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "instancesync-stall-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
     private final File targetDir;
     private final String selectedSide;
     private final String label;
     private final String[] allowedExtensions;
+    private final Options options;
+    private final CdnHosts hosts;
+    private final File stagingDir;
+    private final CdnRoutes routes;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Queue<Outcome> outcomes = new ConcurrentLinkedQueue<>();
+    private final ExecutorService sharedExecutor;
+    private final DiskWriter sharedDiskWriter;
+    private final BooleanSupplier cancelled;
 
     private ExecutorService executor;
+    private DiskWriter diskWriter;
+    private Phaser running;
     private int downloadCount;
 
     public DownloadManager(File targetDir, String selectedSide, String label, String... allowedExtensions) {
+        this(targetDir, selectedSide, label, Options.DEFAULT, allowedExtensions);
+    }
+
+    public DownloadManager(File targetDir, String selectedSide, String label, Options options, String... allowedExtensions) {
+        this(targetDir, selectedSide, label, options, null, null, () -> false, allowedExtensions);
+    }
+
+    /**
+     * Runs the downloads on a shared executor and disk writer instead of ones of its own, and stops early once
+     * {@code cancelled} returns true, leaving the remaining files pending.
+     */
+    public DownloadManager(File targetDir, String selectedSide, String label, Options options, ExecutorService sharedExecutor,
+                           DiskWriter sharedDiskWriter, BooleanSupplier cancelled, String... allowedExtensions) {
+        this.sharedExecutor = sharedExecutor;
+        this.sharedDiskWriter = sharedDiskWriter;
+        this.cancelled = cancelled;
+        this.options = options;
+        this.hosts = options.hosts();
+        this.stagingDir = options.cacheDir() == null ? null : new File(options.cacheDir(), targetDir.getName());
+        this.routes = options.routes() == null ? new CdnRoutes() : options.routes();
         this.targetDir = targetDir;
         this.selectedSide = selectedSide;
         this.label = label;
@@ -39,36 +165,149 @@ public class DownloadManager {
     }
 
     public void downloadInstance(List<Addon> addons, JsonArray rows) {
-        executor = Executors.newFixedThreadPool(10);
+        startDownloads();
 
         System.out.println("Downloading any missing " + label);
         long time = System.currentTimeMillis();
 
         for (Addon addon : addons) {
+            if (cancelled.getAsBoolean()) break;
             if (shouldSkipAddon(addon)) {
                 System.out.println("Skipping " + addon.filename() + " (side: " + addon.side() + ")");
+                outcomes.add(new Outcome(label, addon.filename(), Status.SKIPPED, "side: " + addon.side()));
                 continue;
             }
             downloadAddonIfNeeded(addon);
         }
 
-        if (downloadCount == 0) {
-            System.out.println("No " + label + " need to be downloaded, yay!");
-        } else {
+        awaitDownloads(time);
+        // The caller already considers the sync over, leave the folder alone
+        if (cancelled.getAsBoolean()) return;
+
+        renameDisabledFiles(addons);
+        deleteRemovedFiles(rows);
+        deleteStaleStagedFiles(addons);
+    }
+
+    /**
+     * Downloads the files a future sync will need into the staging dir, leaving the instance untouched.
+     */
+    public void prefetchInstance(List<Addon> addons) {
+        if (stagingDir == null) return;
+        if (!stagingDir.isDirectory() && !stagingDir.mkdirs()) {
+            System.out.println("Failed to create directory: " + stagingDir.getPath());
+            return;
+        }
+
+        startDownloads();
+
+        System.out.println("Prefetching any missing " + label);
+        long time = System.currentTimeMillis();
+
+        for (Addon addon : addons) {
+            if (shouldSkipAddon(addon)) continue;
+
+            String filename = addon.filename();
+            String actualFilename = filename.endsWith(".disabled") ? filename.substring(0, filename.length() - ".disabled".length()) : filename;
+            if (new File(targetDir, filename).exists() || new File(targetDir, actualFilename).exists()) continue;
+
+            File stagedFile = new File(stagingDir, filename);
+            if (!stagedFile.exists()) downloadAddon(addon, stagedFile);
+        }
+
+        awaitDownloads(time);
+    }
+
+    /**
+     * Downloads every missing target from its URL, without any of the modlist bookkeeping.
+     * Used for files that don't live in a managed content folder, like loader libraries.
+     */
+    public void downloadFiles(Map<File, FileDownload> files) {
+        startDownloads();
+
+        System.out.println("Downloading any missing " + label);
+        long time = System.currentTimeMillis();
+
+        for (Map.Entry<File, FileDownload> entry : files.entrySet()) {
+            File targetFile = entry.getKey();
+            if (targetFile.exists()) {
+                outcomes.add(new Outcome(label, targetFile.getName(), Status.UP_TO_DATE, null));
+                continue;
+            }
+
+            File parent = targetFile.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                System.out.println("Failed to create directory: " + parent.getPath());
+                continue;
+            }
+            FileDownload file = entry.getValue();
+            download(targetFile, file.url(), false, file.size(), file.sha1());
+        }
+
+        awaitDownloads(time);
+    }
+
+    /**
+     * Everything that happened to the files of this manager so far.
+     */
+    public List<Outcome> outcomes() {
+        return new ArrayList<>(outcomes);
+    }
+
+    private void startDownloads() {
+        executor = sharedExecutor != null ? sharedExecutor : Executors.newFixedThreadPool(options.networkThreads());
+        diskWriter = sharedDiskWriter != null ? sharedDiskWriter : new DiskWriter(options.diskThreads(), options.maxBufferedBytes());
+        running = new Phaser(1);
+    }
+
+    private boolean isStopped() {
+        return options.isPastDeadline() || cancelled.getAsBoolean();
+    }
+
+    private void awaitDownloads(long time) {
+        int phase = running.arrive();
+
+        try {
+            if (downloadCount == 0) {
+                System.out.println("No " + label + " need to be downloaded, yay!");
+                return;
+            }
             try {
-                executor.shutdown();
-                boolean terminated = executor.awaitTermination(1, TimeUnit.DAYS);
-                if (!terminated) System.out.println("Timeout elapsed before termination completed.");
+                try {
+                    long timeout = options.deadline() > 0 ? Math.max(0, options.deadline() - System.currentTimeMillis()) : TimeUnit.DAYS.toMillis(1);
+                    running.awaitAdvanceInterruptibly(phase, timeout, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Workers notice the deadline between reads, give them a read timeout to clean up partial files
+                    try {
+                        running.awaitAdvanceInterruptibly(phase, options.readTimeoutMillis() + 1000L, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException ignored) {
+                    }
+                }
+                reportPending();
                 float secs = (float) (System.currentTimeMillis() - time) / 1000F;
-                System.out.printf("Finished downloading %d %s (Took %.2fs)%n%n", downloadCount, label, secs);
+                System.out.printf("Finished downloading %d %s (Took %.2fs)%n%n", downloadCount - pending.size(), label, secs);
             } catch (InterruptedException e) {
                 System.out.println("Download interrupted: " + e.getMessage());
                 Thread.currentThread().interrupt();
             }
+        } finally {
+            // Only once the workers are done with them, a closed writer rejects their chunks
+            if (executor != sharedExecutor) executor.shutdown();
+            if (diskWriter != sharedDiskWriter) diskWriter.close();
         }
+    }
 
-        renameDisabledFiles(addons);
-        deleteRemovedFiles(rows);
+    private void reportPending() {
+        if (pending.isEmpty()) return;
+
+        List<String> names = new ArrayList<>(pending);
+        Collections.sort(names);
+        String reason = cancelled.getAsBoolean() ? "Sync cancelled" : "Sync deadline reached";
+        System.out.println(reason + ", " + names.size() + " " + label + " still pending:");
+        for (String name : names) {
+            System.out.println("  " + name);
+            outcomes.add(new Outcome(label, name, Status.PENDING, reason));
+        }
     }
 
     private boolean shouldSkipAddon(Addon addon) {
@@ -85,6 +324,20 @@ public class DownloadManager {
     }
 
     private void downloadAddonIfNeeded(Addon addon) {
+        File targetFile = new File(targetDir, addon.filename());
+        if (targetFile.exists()) {
+            outcomes.add(new Outcome(label, addon.filename(), Status.UP_TO_DATE, null));
+            return;
+        }
+        if (moveStagedFile(targetFile)) {
+            outcomes.add(new Outcome(label, addon.filename(), Status.PREFETCHED, null));
+            return;
+        }
+
+        downloadAddon(addon, targetFile);
+    }
+
+    private void downloadAddon(Addon addon, File targetFile) {
         String filename = addon.filename();
         String fileid = addon.fileid();
         String modId = addon.modId();
@@ -93,16 +346,56 @@ public class DownloadManager {
         String actualFilename = filename.endsWith(".disabled") ? filename.substring(0, filename.length() - ".disabled".length()) : filename;
 
         if (modId != null && version != null) {
-            String downloadUrl = constructModrinthDownloadUrl(modId, version, actualFilename);
-
-            File targetFile = new File(targetDir, filename);
-            if (!targetFile.exists()) download(targetFile, downloadUrl, false);
+            String downloadUrl = constructModrinthDownloadUrl(hosts.modrinth(), modId, version, actualFilename);
+            download(targetFile, downloadUrl, false, addon.size(), null);
         } else if (fileid != null && !fileid.trim().isEmpty()) {
-            String downloadUrl = constructCurseForgeDownloadUrl(Long.parseLong(fileid), actualFilename);
-            File targetFile = new File(targetDir, filename);
-            if (!targetFile.exists()) download(targetFile, downloadUrl, true);
+            String downloadUrl = constructCurseForgeDownloadUrl(hosts.curseforge(), Long.parseLong(fileid), actualFilename);
+            // Validated by --dev to only exist on the mirror, don't bother asking mediafilez
+            if (HOST_EDGE.equals(addon.host())) routes.recordMissing(hosts.curseforge(), downloadUrl.substring(hosts.curseforge().length()));
+            download(targetFile, downloadUrl, true, addon.size(), null);
         } else {
             System.out.println("Skipping " + filename + " due to empty fileid and mod-id/version");
+            outcomes.add(new Outcome(label, filename, Status.SKIPPED, "empty fileid and mod-id/version"));
+        }
+    }
+
+    private boolean moveStagedFile(File targetFile) {
+        if (stagingDir == null) return false;
+
+        File stagedFile = new File(stagingDir, targetFile.getName());
+        if (!stagedFile.isFile()) return false;
+
+        try {
+            Files.move(stagedFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Moved prefetched " + targetFile.getName() + " into place");
+            return true;
+        } catch (IOException e) {
+            System.out.println("Failed to move prefetched " + targetFile.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Deletes staged files this sync will never move into place: ones no longer in the modlist, ones for
+     * another side, and ones whose target is already there.
+     */
+    private void deleteStaleStagedFiles(List<Addon> addons) {
+        if (stagingDir == null) return;
+
+        Set<String> needed = new HashSet<>();
+        for (Addon addon : addons) {
+            if (shouldSkipAddon(addon)) continue;
+            String filename = addon.filename();
+            String actualFilename = filename.endsWith(".disabled") ? filename.substring(0, filename.length() - ".disabled".length()) : filename;
+            if (new File(targetDir, filename).exists() || new File(targetDir, actualFilename).exists()) continue;
+            needed.add(filename);
+        }
+
+        // A prefetch can be running in the background, its partial files aren't ours to delete
+        File[] stale = stagingDir.listFiles(f -> f.isFile() && !f.getName().endsWith(".part") && !needed.contains(f.getName()));
+        if (stale == null) return;
+        for (File f : stale) {
+            if (!f.delete()) System.out.println("Failed to delete prefetched " + f.getName());
         }
     }
 
@@ -117,67 +410,220 @@ public class DownloadManager {
                 if (enabledFile.exists() && !disabledFile.exists()) {
                     if (enabledFile.renameTo(disabledFile)) {
                         System.out.println("Renamed " + actualFilename + " to " + filename);
+                        outcomes.add(new Outcome(label, filename, Status.RENAMED, "from " + actualFilename));
                     } else {
                         System.out.println("Failed to rename " + actualFilename + " to " + filename);
+                        outcomes.add(new Outcome(label, filename, Status.FAILED, "rename from " + actualFilename));
                     }
                 }
             }
         }
     }
 
-    private String constructCurseForgeDownloadUrl(long fileid, String filename) {
+    static String constructCurseForgeDownloadUrl(String base, long fileid, String filename) {
         long firstPart = fileid / 1000;
         long secondPart = fileid % 1000;
         String encodedFilename = URLEncoder.encode(filename, StandardCharsets.UTF_8).replace("+", "%20");
-        return "https://mediafilez.forgecdn.net/files/" + firstPart + "/" + secondPart + "/" + encodedFilename;
+        return base + "/files/" + firstPart + "/" + secondPart + "/" + encodedFilename;
     }
 
-    private String constructModrinthDownloadUrl(String modId, String version, String filename) {
+    static String constructModrinthDownloadUrl(String base, String modId, String version, String filename) {
         String encodedFilename = URLEncoder.encode(filename, StandardCharsets.UTF_8);
-        return "https://cdn.modrinth.com/data/" + modId + "/versions/" + version + "/" + encodedFilename;
+        return base + "/data/" + modId + "/versions/" + version + "/" + encodedFilename;
     }
 
-    private void download(final File target, final String downloadUrl, boolean useFallback) {
+    /**
+     * @param expectedSize size the file was validated with, or -1 if unknown
+     * @param expectedSha1 hex SHA-1 the file must have, or null if unknown
+     */
+    private void download(final File target, final String downloadUrl, boolean useFallback, long expectedSize, String expectedSha1) {
+        String name = target.getName();
         Runnable run = () -> {
-            String name = target.getName();
+            if (isStopped()) return;
             long time = System.currentTimeMillis();
 
             try {
                 System.out.println("Downloading " + name);
-                downloadFile(target, downloadUrl);
-                float secs = (float) (System.currentTimeMillis() - time) / 1000F;
-                System.out.printf("Finished downloading %s (Took %.2fs)%n", name, secs);
-            } catch (IOException e) {
-                System.out.println("File not found at URL: " + downloadUrl);
                 if (useFallback) {
+                    downloadFromCurseForge(target, downloadUrl.substring(hosts.curseforge().length()), expectedSize, expectedSha1);
+                } else {
                     try {
-                        System.out.println("Retrying with edge.forgecdn.net");
-                        downloadFile(target, downloadUrl.replace("mediafilez.forgecdn.net", "edge.forgecdn.net"));
-                        float secs = (float) (System.currentTimeMillis() - time) / 1000F;
-                        System.out.printf("Finished downloading %s (Took %.2fs)%n", name, secs);
-                    } catch (IOException ex) {
-                        System.out.println("Failed to download " + name + " from fallback URL: " + ex.getMessage());
+                        downloadWithRetries(target, downloadUrl, downloadUrl.startsWith(hosts.modrinth()) ? hosts.modrinth() : null, expectedSize, expectedSha1);
+                    } catch (FileNotFoundException e) {
+                        System.out.println("File not found at URL: " + downloadUrl);
+                        throw e;
                     }
                 }
+                pending.remove(name);
+                outcomes.add(new Outcome(label, name, Status.DOWNLOADED, null));
+                float secs = (float) (System.currentTimeMillis() - time) / 1000F;
+                System.out.printf("Finished downloading %s (Took %.2fs)%n", name, secs);
+            } catch (IOException e) {
+                if (isStopped()) return;
+                pending.remove(name);
+                outcomes.add(new Outcome(label, name, Status.FAILED, e.getMessage()));
+                System.out.println("Failed to download " + name + ": " + e.getMessage());
             }
         };
 
         downloadCount++;
-        executor.submit(run);
+        pending.add(name);
+        running.register();
+        try {
+            executor.execute(() -> {
+                try {
+                    run.run();
+                } finally {
+                    running.arriveAndDeregister();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.arriveAndDeregister();
+            pending.remove(name);
+            outcomes.add(new Outcome(label, name, Status.FAILED, "executor shut down"));
+        }
+    }
+
+    /**
+     * Tries the CurseForge hosts in the order the routing table suggests, so a file that was missing from
+     * mediafilez last time goes straight to the mirror it was found on.
+     */
+    private void downloadFromCurseForge(File target, String path, long expectedSize, String expectedSha1) throws IOException {
+        List<String> bases = routes.order(path, hosts.curseforge(), hosts.curseforgeFallback());
+        IOException failure = null;
+        for (String base : bases) {
+            if (failure != null) System.out.println("Retrying with " + base);
+            try {
+                downloadWithRetries(target, base + path, base, expectedSize, expectedSha1);
+                routes.recordFound(base, path);
+                return;
+            } catch (FileNotFoundException e) {
+                System.out.println("File not found at URL: " + base + path);
+                routes.recordMissing(base, path);
+                failure = e;
+            } catch (IOException e) {
+                if (isStopped()) throw e;
+                System.out.println("Failed to download from " + base + path + ": " + e.getMessage());
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Retries timed out and stalled transfers. A missing file isn't retried, that's what the fallback is for.
+     */
+    private void downloadWithRetries(File target, String downloadUrl, String base, long expectedSize, String expectedSha1) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                downloadFile(target, downloadUrl, base, expectedSize, expectedSha1);
+                return;
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                if (base != null && !isStopped()) routes.recordFailure(base);
+                if (attempt >= options.retries() || isStopped()) throw e;
+                System.out.println("Retrying " + target.getName() + " (" + e.getMessage() + ")");
+            }
+        }
     }
 
-    private void downloadFile(File target, String downloadUrl) throws IOException {
+    private void downloadFile(File target, String downloadUrl, String base, long expectedSize, String expectedSha1) throws IOException {
         URI uri = URI.create(downloadUrl);
         URL url = uri.toURL();
         URLConnection connection = url.openConnection();
-        try (InputStream in = connection.getInputStream();
-             FileOutputStream out = new FileOutputStream(target)) {
+        connection.setConnectTimeout(options.connectTimeoutMillis());
+        // A read blocked for a whole stall window is a stall too, don't wait for the full read timeout
+        int stallWindow = options.stallWindowMillis();
+        connection.setReadTimeout(stallWindow > 0 ? Math.min(options.readTimeoutMillis(), stallWindow) : options.readTimeoutMillis());
+
+        // Written next to the target and moved over it once complete, so a killed run never leaves a truncated file
+        File part = new File(target.getPath() + ".part");
+        long requested = System.currentTimeMillis();
+        AtomicLong received = new AtomicLong();
+        AtomicReference<String> stall = new AtomicReference<>();
+        ScheduledFuture<?> watchdog = null;
+        try (InputStream in = connection.getInputStream()) {
+            if (base != null) routes.recordSuccess(base, System.currentTimeMillis() - requested);
+            watchdog = watchForStalls(received, stall);
+
+            MessageDigest digest = expectedSha1 == null ? null : sha1();
+            DiskWriter.Sink sink = diskWriter.open(part);
+            boolean complete = false;
+            try {
+                byte[] chunk = new byte[DiskWriter.CHUNK_SIZE];
+                int filled = 0;
+                int read;
+                long total = 0;
+                while ((read = in.read(chunk, filled, chunk.length - filled)) > 0) {
+                    if (digest != null) digest.update(chunk, filled, read);
+                    filled += read;
+                    if (filled == chunk.length) {
+                        sink.write(chunk, filled);
+                        chunk = new byte[DiskWriter.CHUNK_SIZE];
+                        filled = 0;
+                    }
+                    total += read;
+                    received.addAndGet(read);
 
-            byte[] buf = new byte[4096];
-            int read;
-            while ((read = in.read(buf)) > 0) {
-                out.write(buf, 0, read);
+                    if (stall.get() != null) throw new IOException(stall.get());
+                    if (isStopped()) throw new IOException(cancelled.getAsBoolean() ? "Sync cancelled" : "Sync deadline reached");
+                }
+                if (watchdog != null) watchdog.cancel(false);
+                if (filled > 0) sink.write(chunk, filled);
+                if (expectedSize >= 0 && total != expectedSize) {
+                    throw new IOException("Expected " + expectedSize + " bytes but got " + total);
+                }
+                if (digest != null) {
+                    String actual = HexFormat.of().formatHex(digest.digest());
+                    if (!actual.equalsIgnoreCase(expectedSha1)) {
+                        throw new IOException("Expected SHA-1 " + expectedSha1 + " but got " + actual);
+                    }
+                }
+                sink.finish();
+                complete = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download interrupted");
+            } finally {
+                if (!complete) {
+                    sink.abort();
+                    if (part.exists() && !part.delete()) {
+                        System.out.println("Failed to delete partial file " + part.getName());
+                    }
+                }
             }
+        } catch (SocketTimeoutException e) {
+            if (received.get() == 0 && stall.get() == null) throw e;
+            throw new IOException("Transfer stalled (no data for " + connection.getReadTimeout() + "ms)", e);
+        } finally {
+            if (watchdog != null) watchdog.cancel(false);
+        }
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Measures throughput over fixed windows on its own clock, so a window counts the same no matter when reads
+     * happen to return. A window below the minimum speed fails the transfer at its next read.
+     */
+    private ScheduledFuture<?> watchForStalls(AtomicLong received, AtomicReference<String> stall) {
+        long window = options.stallWindowMillis();
+        if (window <= 0 || options.minBytesPerSecond() <= 0) return null;
+
+        long[] last = {0};
+        return STALL_WATCHDOG.scheduleAtFixedRate(() -> {
+            long now = received.get();
+            long rate = (now - last[0]) * 1000 / window;
+            last[0] = now;
+            if (rate < options.minBytesPerSecond()) stall.compareAndSet(null, "Transfer stalled (" + rate + " B/s)");
+        }, window, window, TimeUnit.MILLISECONDS);
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
     }
 
@@ -191,8 +637,10 @@ public class DownloadManager {
                 System.out.println("Found removed file " + f.getName());
                 if (f.delete()) {
                     System.out.println("Deleted " + f.getName());
+                    outcomes.add(new Outcome(label, f.getName(), Status.DELETED, null));
                 } else {
                     System.out.println("Failed to delete " + f.getName());
+                    outcomes.add(new Outcome(label, f.getName(), Status.FAILED, "delete"));
                 }
             }
             System.out.println("Deleted " + files.length + " old " + label);
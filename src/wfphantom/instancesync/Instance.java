@@ -8,6 +8,8 @@ public class Instance {
             String fileid,
             @SerializedName("mod-id")  String modId,
             String version,
-            String side
+            String side,
+            String host,
+            long size
     ) {}
 }
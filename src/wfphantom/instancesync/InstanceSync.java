@@ -3,13 +3,22 @@ package wfphantom.instancesync;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.net.URISyntaxException;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BooleanSupplier;
 
 import com.google.gson.*;
 import com.google.gson.stream.JsonReader;
@@ -18,6 +27,9 @@ import wfphantom.instancesync.Instance.Addon;
 public final class InstanceSync {
 	private static final String VERSION = "1.2.1";
 	public static final String MODLIST = "modlist.json";
+	public static final String CACHE_DIR = ".instancesync/cache";
+	public static final String ROUTES_FILE = ".instancesync/routes.json";
+	private static final String PREFETCH_LOCK = "prefetch.lock";
 
 	public static void main(String[] args) {
 		for (String arg : args) {
@@ -25,12 +37,19 @@ public final class InstanceSync {
 				ModlistUpdater.run(args);
 				return;
 			}
+			if (arg.startsWith("--prefetch=")) {
+				prefetch(new File("."), arg.substring("--prefetch=".length()), args);
+				return;
+			}
 		}
 
+		sync(new File("."), args);
+	}
+
+	static void sync(File dir, String[] args) {
 		System.out.println("Prism InstanceSync " + VERSION);
 
 		long time = System.currentTimeMillis();
-		File dir = new File(".");
 		System.out.println("Running in " + dir.getAbsolutePath());
 
 		File instanceFile = new File(dir, MODLIST);
@@ -46,15 +65,7 @@ public final class InstanceSync {
 		ensureDirExists(new File(dir, "resourcepacks"));
 		ensureDirExists(new File(dir, "datapacks"));
 
-		int choice = 0;
-		for (String arg : args) {
-			if (arg.startsWith("--option=")) {
-				try {
-					choice = Integer.parseInt(arg.substring("--option=".length()));
-				} catch (NumberFormatException ignored) {
-				}
-			}
-		}
+		int choice = parseChoice(args);
 
 		if (choice == 0) {
 			Scanner scanner = new Scanner(System.in);
@@ -78,25 +89,17 @@ public final class InstanceSync {
 			scanner.close();
 		}
 
-		String selectedSide = switch (choice) {
-			case 1 -> "all";
-			case 2 -> "client";
-			case 3 -> "server";
-			case 4 -> "client-only";
-			case 5 -> "server-only";
-			case 6 -> "both-only";
-			default -> throw new IllegalStateException("Unexpected value: " + choice);
-		};
+		String selectedSide = sideForChoice(choice);
 
 		System.out.println("Downloading " + selectedSide);
 
-		try (FileReader fr = new FileReader(instanceFile)) {
-			System.out.println("Reading " + MODLIST);
+		DownloadManager.Options options = parseDownloadOptions(dir, args);
+		LoaderLibraries.Options libraries = parseLibraryOptions(dir, args);
 
-			JsonReader reader = new JsonReader(fr);
-			reader.setStrictness(Strictness.LENIENT);
+		try {
+			System.out.println("Reading " + MODLIST);
 
-			JsonObject root = JsonParser.parseReader(reader).getAsJsonObject();
+			JsonObject root = readModlist(instanceFile);
 			JsonArray modsRows = root.getAsJsonArray("mods");
 			JsonArray shaderRows = root.getAsJsonArray("shaderpacks");
 			JsonArray resourceRows = root.getAsJsonArray("resourcepacks");
@@ -110,11 +113,9 @@ public final class InstanceSync {
 							+ datapackRows.size() + " datapacks\n"
 			);
 
-			syncMmcPackLoaderFromModlist(root);
-			downloadCategory(root, "mods", new File(dir, "mods"), selectedSide, "mods", ".jar");
-			downloadCategory(root, "shaderpacks", new File(dir, "shaderpacks"), selectedSide, "shaderpacks", ".zip");
-			downloadCategory(root, "resourcepacks", new File(dir, "resourcepacks"), selectedSide, "resourcepacks", ".zip");
-			downloadCategory(root, "datapacks", new File(dir, "datapacks"), selectedSide, "datapacks", ".zip");
+			try (SyncEngine engine = new SyncEngine(options.networkThreads(), options.diskThreads(), options.maxBufferedBytes())) {
+				engine.run(dir, root, selectedSide, options, libraries, () -> false);
+			}
 
 			float secs = (float) (System.currentTimeMillis() - time) / 1000F;
 			System.out.printf("%nDone! Took %.2fs%n", secs);
@@ -123,7 +124,203 @@ public final class InstanceSync {
 		}
 	}
 
-	private static void syncMmcPackLoaderFromModlist(JsonObject modlistRoot) {
+	/**
+	 * Downloads everything the modlist at {@code ref} needs into the staging cache, without touching the instance.
+	 * The post-merge sync then only has to move the staged files into place.
+	 */
+	static void prefetch(File dir, String ref, String[] args) {
+		System.out.println("Prism InstanceSync " + VERSION);
+		System.out.println("Prefetching " + MODLIST + " from " + ref);
+
+		long time = System.currentTimeMillis();
+		JsonObject root;
+		try {
+			Process process = new ProcessBuilder("git", "show", ref + ":./" + MODLIST)
+					.directory(dir)
+					.redirectError(ProcessBuilder.Redirect.INHERIT)
+					.start();
+			String json = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+			int exit = process.waitFor();
+			if (exit != 0) {
+				System.out.println("git show exited with " + exit + ", aborting prefetch");
+				return;
+			}
+
+			JsonReader reader = new JsonReader(new StringReader(json));
+			reader.setStrictness(Strictness.LENIENT);
+			root = JsonParser.parseReader(reader).getAsJsonObject();
+		} catch (IOException | JsonParseException | IllegalStateException e) {
+			System.out.println("Failed to read " + MODLIST + " from " + ref + ": " + e.getMessage());
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		int choice = parseChoice(args);
+		String selectedSide = sideForChoice(choice == 0 ? 1 : choice);
+		if (choice == 0) System.out.println("No --option given, staging all sides. Pass the --option the sync uses to only stage what it needs");
+		DownloadManager.Options options = parseDownloadOptions(dir, args);
+		System.out.println("Staging " + selectedSide + " in " + options.cacheDir().getPath());
+
+		// Overlapping prefetches would write the same .part files, let them take turns
+		File lockFile = new File(options.cacheDir(), PREFETCH_LOCK);
+		if (!options.cacheDir().isDirectory() && !options.cacheDir().mkdirs()) {
+			System.out.println("Failed to create directory: " + options.cacheDir().getPath());
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			FileLock lock = channel.tryLock();
+			if (lock == null) {
+				System.out.println("Another prefetch is running, waiting for it to finish");
+				lock = channel.lock();
+			}
+			try {
+				prefetchCategory(root, "mods", new File(dir, "mods"), selectedSide, options, "mods");
+				prefetchCategory(root, "shaderpacks", new File(dir, "shaderpacks"), selectedSide, options, "shaderpacks");
+				prefetchCategory(root, "resourcepacks", new File(dir, "resourcepacks"), selectedSide, options, "resourcepacks");
+				prefetchCategory(root, "datapacks", new File(dir, "datapacks"), selectedSide, options, "datapacks");
+				options.routes().save(routePaths(root));
+			} finally {
+				lock.release();
+			}
+		} catch (IOException e) {
+			System.out.println("Failed to lock the staging cache: " + e.getMessage());
+			return;
+		}
+
+		float secs = (float) (System.currentTimeMillis() - time) / 1000F;
+		System.out.printf("%nDone! Took %.2fs%n", secs);
+	}
+
+	private static void prefetchCategory(JsonObject root, String key, File targetDir, String selectedSide, DownloadManager.Options options, String label) {
+		JsonArray rows = root.getAsJsonArray(key);
+		if (rows == null) return;
+
+		DownloadManager manager = new DownloadManager(targetDir, selectedSide, label, options);
+		manager.prefetchInstance(parseAddonsFromRows(rows));
+	}
+
+	private static int parseChoice(String[] args) {
+		int choice = 0;
+		for (String arg : args) {
+			if (arg.startsWith("--option=")) {
+				try {
+					choice = Integer.parseInt(arg.substring("--option=".length()));
+				} catch (NumberFormatException ignored) {
+				}
+			}
+		}
+		return choice;
+	}
+
+	private static String sideForChoice(int choice) {
+		return switch (choice) {
+			case 1 -> "all";
+			case 2 -> "client";
+			case 3 -> "server";
+			case 4 -> "client-only";
+			case 5 -> "server-only";
+			case 6 -> "both-only";
+			default -> throw new IllegalStateException("Unexpected value: " + choice);
+		};
+	}
+
+	/**
+	 * Reads the network and staging args. The deadline starts counting from this call.
+	 * Without a {@code dir}, the staging cache and CDN routes of an instance are left out.
+	 */
+	static DownloadManager.Options parseDownloadOptions(File dir, String[] args) {
+		DownloadManager.Options defaults = DownloadManager.Options.DEFAULT;
+		String modrinthUrl = defaults.hosts().modrinth();
+		String curseforgeUrl = defaults.hosts().curseforge();
+		String curseforgeFallbackUrl = defaults.hosts().curseforgeFallback();
+		int connectTimeout = defaults.connectTimeoutMillis();
+		int readTimeout = defaults.readTimeoutMillis();
+		long minSpeed = defaults.minBytesPerSecond();
+		int stallWindow = defaults.stallWindowMillis();
+		int retries = defaults.retries();
+		long deadlineMillis = 0;
+		File cacheDir = dir == null ? null : new File(dir, CACHE_DIR);
+		int networkThreads = defaults.networkThreads();
+		int diskThreads = defaults.diskThreads();
+		long maxBufferedBytes = defaults.maxBufferedBytes();
+		for (String arg : args) {
+			if (arg.startsWith("--modrinthUrl=")) {
+				modrinthUrl = arg.substring("--modrinthUrl=".length());
+			} else if (arg.startsWith("--curseforgeUrl=")) {
+				curseforgeUrl = arg.substring("--curseforgeUrl=".length());
+			} else if (arg.startsWith("--curseforgeFallbackUrl=")) {
+				curseforgeFallbackUrl = arg.substring("--curseforgeFallbackUrl=".length());
+			} else if (arg.startsWith("--connectTimeout=")) {
+				connectTimeout = (int) parseSeconds(arg, "--connectTimeout=", connectTimeout);
+			} else if (arg.startsWith("--readTimeout=")) {
+				readTimeout = (int) parseSeconds(arg, "--readTimeout=", readTimeout);
+			} else if (arg.startsWith("--stallWindow=")) {
+				stallWindow = (int) parseSeconds(arg, "--stallWindow=", stallWindow);
+			} else if (arg.startsWith("--deadline=")) {
+				deadlineMillis = parseSeconds(arg, "--deadline=", 0);
+			} else if (arg.startsWith("--minSpeed=")) {
+				try {
+					minSpeed = Long.parseLong(arg.substring("--minSpeed=".length()));
+				} catch (NumberFormatException ignored) {
+				}
+			} else if (arg.startsWith("--retries=")) {
+				try {
+					retries = Integer.parseInt(arg.substring("--retries=".length()));
+				} catch (NumberFormatException ignored) {
+				}
+			} else if (arg.startsWith("--cacheDir=")) {
+				if (dir != null) cacheDir = new File(dir, arg.substring("--cacheDir=".length()));
+			} else if (arg.startsWith("--networkThreads=")) {
+				try {
+					networkThreads = Math.max(1, Integer.parseInt(arg.substring("--networkThreads=".length())));
+				} catch (NumberFormatException ignored) {
+				}
+			} else if (arg.startsWith("--diskThreads=")) {
+				try {
+					diskThreads = Math.max(1, Integer.parseInt(arg.substring("--diskThreads=".length())));
+				} catch (NumberFormatException ignored) {
+				}
+			} else if (arg.startsWith("--maxBufferedMB=")) {
+				try {
+					maxBufferedBytes = Long.parseLong(arg.substring("--maxBufferedMB=".length())) * 1024 * 1024;
+				} catch (NumberFormatException ignored) {
+				}
+			}
+		}
+
+		DownloadManager.CdnHosts hosts = new DownloadManager.CdnHosts(modrinthUrl, curseforgeUrl, curseforgeFallbackUrl);
+		long deadline = deadlineMillis > 0 ? System.currentTimeMillis() + deadlineMillis : 0;
+		CdnRoutes routes = dir == null ? null : CdnRoutes.load(new File(dir, ROUTES_FILE).toPath());
+		return new DownloadManager.Options(hosts, connectTimeout, readTimeout, minSpeed, stallWindow, retries, deadline, cacheDir, routes,
+				networkThreads, diskThreads, maxBufferedBytes);
+	}
+
+	/**
+	 * Reads the loader library args, or returns null if {@code --prefetchLibraries} isn't set.
+	 */
+	static LoaderLibraries.Options parseLibraryOptions(File dir, String[] args) {
+		boolean prefetchLibraries = false;
+		String metaUrl = null;
+		String mavenUrl = null;
+		Path librariesDir = null;
+		for (String arg : args) {
+			if (arg.equalsIgnoreCase("--prefetchLibraries")) {
+				prefetchLibraries = true;
+			} else if (arg.startsWith("--metaUrl=")) {
+				metaUrl = arg.substring("--metaUrl=".length());
+			} else if (arg.startsWith("--mavenUrl=")) {
+				mavenUrl = arg.substring("--mavenUrl=".length());
+			} else if (arg.startsWith("--librariesDir=")) {
+				String value = arg.substring("--librariesDir=".length());
+				if (!value.isBlank()) librariesDir = instanceRoot(dir).resolve(value).normalize();
+			}
+		}
+		return prefetchLibraries ? new LoaderLibraries.Options(metaUrl, mavenUrl, librariesDir) : null;
+	}
+
+	static void syncMmcPackLoaderFromModlist(File dir, JsonObject modlistRoot) {
 		JsonArray loader = modlistRoot.getAsJsonArray("loader");
 		if (loader == null || loader.size() < 2) {
 			System.out.println("No loader info in modlist.json, skipping mmc-pack.json loader sync");
@@ -138,20 +335,15 @@ public final class InstanceSync {
 			return;
 		}
 
-		String uid = switch (loaderName) {
-			case "NeoForge" -> "net.neoforged";
-			case "Fabric Loader" -> "net.fabricmc.fabric-loader";
-			default -> null;
-		};
+		String uid = loaderUid(loaderName);
 		if (uid == null) {
 			System.out.println("Unknown loader name \"" + loaderName + "\" in modlist.json, skipping mmc-pack.json loader sync");
 			return;
 		}
 
-		Path jarDir = getJarDir();
-		Path parent = jarDir.getParent();
+		Path parent = instanceRoot(dir).getParent();
 		if (parent == null) {
-			System.out.println("Can't locate mmc-pack.json (jar has no parent directory), skipping loader sync");
+			System.out.println("Can't locate mmc-pack.json (instance has no parent directory), skipping loader sync");
 			return;
 		}
 
@@ -218,18 +410,73 @@ public final class InstanceSync {
 		}
 	}
 
-	private static Path getJarDir() {
-		Path path = Path.of(".");
+	static List<DownloadManager.Outcome> prefetchLoaderLibraries(File dir, JsonObject modlistRoot, LoaderLibraries.Options libraryOptions, DownloadManager.Options options,
+										ExecutorService executor, DiskWriter diskWriter, BooleanSupplier cancelled) {
+		JsonArray loader = modlistRoot.getAsJsonArray("loader");
+		if (loader == null || loader.size() < 2) {
+			System.out.println("No loader info in modlist.json, skipping loader library prefetch");
+			return List.of();
+		}
+
+		String loaderName = loader.get(0).getAsString();
+		String loaderVersion = loader.get(1).getAsString();
+		String uid = loaderUid(loaderName);
+		if (uid == null || loaderVersion == null || loaderVersion.isBlank()) {
+			System.out.println("Unknown or empty loader in modlist.json, skipping loader library prefetch");
+			return List.of();
+		}
+
+		Path librariesDir = libraryOptions.librariesDir();
+		if (librariesDir == null) {
+			// <prism>/instances/<instance>/<repo> -> <prism>/libraries
+			Path prismRoot = instanceRoot(dir);
+			for (int i = 0; i < 3 && prismRoot != null; i++) prismRoot = prismRoot.getParent();
+			if (prismRoot == null) {
+				System.out.println("Can't locate the Prism libraries directory, use --librariesDir=<path>; skipping loader library prefetch");
+				return List.of();
+			}
+			librariesDir = prismRoot.resolve("libraries");
+		}
+
+		List<LoaderLibraries.Library> libraries;
 		try {
-			Path location = Path.of(InstanceSync.class.getProtectionDomain().getCodeSource().getLocation().toURI());
-			Path dir = Files.isRegularFile(location) ? location.getParent() : location;
-			return dir == null ? path.toAbsolutePath() : dir.toAbsolutePath();
-		} catch (URISyntaxException e) {
-			return path.toAbsolutePath();
+			libraries = new LoaderLibraries(libraryOptions.metaUrl(), libraryOptions.mavenUrl(), options.connectTimeoutMillis(), options.readTimeoutMillis())
+					.resolve(uid, loaderVersion);
+		} catch (Exception e) {
+			System.out.println("Failed to resolve libraries for " + loaderName + " " + loaderVersion + ": " + e.getMessage());
+			return List.of();
+		}
+
+		System.out.println("Resolved " + libraries.size() + " libraries for " + loaderName + " " + loaderVersion);
+
+		// The libraries folder is shared by every instance, only a verified file may end up there
+		Map<File, DownloadManager.FileDownload> files = new LinkedHashMap<>();
+		for (LoaderLibraries.Library library : libraries) {
+			files.put(librariesDir.resolve(library.path()).toFile(), new DownloadManager.FileDownload(library.url(), library.size(), library.sha1()));
 		}
+
+		DownloadManager manager = new DownloadManager(librariesDir.toFile(), "all", "loader libraries", options, executor, diskWriter, cancelled);
+		manager.downloadFiles(files);
+		return manager.outcomes();
+	}
+
+	private static String loaderUid(String loaderName) {
+		if (loaderName == null) return null;
+		return switch (loaderName) {
+			case "NeoForge" -> "net.neoforged";
+			case "Fabric Loader" -> "net.fabricmc.fabric-loader";
+			default -> null;
+		};
 	}
 
-	private static void ensureDirExists(File dir) {
+	/**
+	 * The folder the modlist is synced into, which Prism keeps next to mmc-pack.json.
+	 */
+	private static Path instanceRoot(File dir) {
+		return dir.toPath().toAbsolutePath().normalize();
+	}
+
+	static void ensureDirExists(File dir) {
 		if (!dir.exists() || !dir.isDirectory()) {
 			System.out.println("/" + dir.getName() + " does not exist, creating");
 			boolean success = dir.mkdir();
@@ -239,19 +486,33 @@ public final class InstanceSync {
 		}
 	}
 
-	private static void downloadCategory(JsonObject root, String key, File targetDir, String selectedSide, String label, String... extensions) {
-		JsonArray rows = root.getAsJsonArray(key);
-		if (rows == null) {
-			System.out.println("No \"" + key + "\" section in modlist, skipping");
-			return;
+	static JsonObject readModlist(File modlist) throws IOException {
+		try (FileReader fr = new FileReader(modlist, StandardCharsets.UTF_8)) {
+			JsonReader reader = new JsonReader(fr);
+			reader.setStrictness(Strictness.LENIENT);
+			return JsonParser.parseReader(reader).getAsJsonObject();
 		}
+	}
 
-		List<Addon> addons = parseAddonsFromRows(rows);
-		DownloadManager manager = new DownloadManager(targetDir, selectedSide, label, extensions);
-		manager.downloadInstance(addons, rows);
+	/**
+	 * The paths below the CurseForge hosts of every file in the modlist, as {@link CdnRoutes} keys them.
+	 */
+	static Set<String> routePaths(JsonObject root) {
+		Set<String> paths = new HashSet<>();
+		for (String key : new String[]{"mods", "shaderpacks", "resourcepacks", "datapacks"}) {
+			JsonArray rows = root.getAsJsonArray(key);
+			if (rows == null) continue;
+			for (Addon addon : parseAddonsFromRows(rows)) {
+				if (addon.fileid() == null || addon.fileid().isBlank()) continue;
+				String filename = addon.filename();
+				String actualFilename = filename.endsWith(".disabled") ? filename.substring(0, filename.length() - ".disabled".length()) : filename;
+				paths.add(DownloadManager.constructCurseForgeDownloadUrl("", Long.parseLong(addon.fileid()), actualFilename));
+			}
+		}
+		return paths;
 	}
 
-	private static List<Addon> parseAddonsFromRows(JsonArray rows) {
+	static List<Addon> parseAddonsFromRows(JsonArray rows) {
 		List<Addon> addons = new ArrayList<>();
 		for (JsonElement el : rows) {
 			if (!el.isJsonArray()) continue;
@@ -263,17 +524,40 @@ public final class InstanceSync {
 			String id2 = r.get(2).getAsString();
 			String side = r.get(3).getAsString();
 
+			// Optional host and size columns, stamped by --dev validation
+			String host = null;
+			long size = -1;
+			if (r.size() >= 6) {
+				host = r.get(4).getAsString();
+				try {
+					size = Long.parseLong(r.get(5).getAsString());
+				} catch (NumberFormatException ignored) {
+				}
+			}
+
 			boolean curseforge = isDigitsOnly(id1) && isDigitsOnly(id2);
 			if (curseforge) {
-				addons.add(new Addon(filename, id2, null, null, side));
+				addons.add(new Addon(filename, id2, null, null, side, host, size));
 			} else {
-				addons.add(new Addon(filename, null, id1, id2, side));
+				addons.add(new Addon(filename, null, id1, id2, side, host, size));
 			}
 		}
 		return addons;
 	}
 
-	private static boolean isDigitsOnly(String s) {
+	/**
+	 * Parses a seconds arg into millis, keeping the fallback if it isn't a number.
+	 */
+	private static long parseSeconds(String arg, String prefix, long fallbackMillis) {
+		try {
+			return (long) (Double.parseDouble(arg.substring(prefix.length())) * 1000);
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid arg: " + arg + ", expected a number of seconds");
+			return fallbackMillis;
+		}
+	}
+
+	static boolean isDigitsOnly(String s) {
 		if (s == null || s.isEmpty()) return false;
 		for (int i = 0; i < s.length(); i++) {
 			if (!Character.isDigit(s.charAt(i))) return false;
@@ -0,0 +1,128 @@
+package wfphantom.instancesync;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LoaderLibraries {
+    public static final String DEFAULT_META_URL = "https://meta.prismlauncher.org/v1/";
+
+    /**
+     * A library file. {@code size} is -1 and {@code sha1} null when the meta doesn't list them.
+     */
+    public record Library(String path, String url, long size, String sha1) {}
+
+    /**
+     * Where loader libraries are prefetched from and to. Null urls use Prism's, and a null {@code librariesDir}
+     * the Prism libraries folder the instance lives in.
+     */
+    public record Options(String metaUrl, String mavenUrl, Path librariesDir) {}
+
+    private final String metaUrl;
+    private final String mavenUrl;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    public LoaderLibraries(String metaUrl, String mavenUrl, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.metaUrl = withTrailingSlash(metaUrl == null || metaUrl.isBlank() ? DEFAULT_META_URL : metaUrl);
+        this.mavenUrl = mavenUrl == null || mavenUrl.isBlank() ? null : withTrailingSlash(mavenUrl);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public List<Library> resolve(String uid, String version) throws IOException {
+        String url = metaUrl + uid + "/" + version + ".json";
+        JsonObject root;
+        URLConnection connection = URI.create(url).toURL().openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        try (InputStream in = connection.getInputStream();
+             Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            root = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+
+        Map<String, Library> libraries = new LinkedHashMap<>();
+        collect(root.getAsJsonArray("libraries"), libraries);
+        collect(root.getAsJsonArray("mavenFiles"), libraries);
+        return new ArrayList<>(libraries.values());
+    }
+
+    private void collect(JsonArray array, Map<String, Library> out) {
+        if (array == null) return;
+        for (JsonElement el : array) {
+            if (!el.isJsonObject()) continue;
+            Library library = toLibrary(el.getAsJsonObject());
+            if (library != null) out.putIfAbsent(library.path(), library);
+        }
+    }
+
+    private Library toLibrary(JsonObject lib) {
+        String path = null;
+        String url = null;
+        long size = -1;
+        String sha1 = null;
+
+        JsonObject downloads = lib.has("downloads") && lib.get("downloads").isJsonObject() ? lib.getAsJsonObject("downloads") : null;
+        JsonObject artifact = downloads != null && downloads.has("artifact") && downloads.get("artifact").isJsonObject() ? downloads.getAsJsonObject("artifact") : null;
+        if (artifact != null) {
+            if (artifact.has("path")) path = artifact.get("path").getAsString();
+            if (artifact.has("url")) url = artifact.get("url").getAsString();
+            if (artifact.has("size")) size = artifact.get("size").getAsLong();
+            if (artifact.has("sha1")) sha1 = artifact.get("sha1").getAsString();
+        }
+
+        if (path == null && lib.has("name")) {
+            path = mavenPath(lib.get("name").getAsString());
+        }
+        if (path == null || path.isBlank()) return null;
+
+        if (mavenUrl != null) {
+            url = mavenUrl + path;
+        } else if (url == null || url.isBlank()) {
+            if (!lib.has("url")) return null;
+            url = withTrailingSlash(lib.get("url").getAsString()) + path;
+        }
+
+        return new Library(path, url, size, sha1);
+    }
+
+    /**
+     * Converts a maven coordinate (group:artifact:version[:classifier][@ext]) into its repository path.
+     */
+    static String mavenPath(String coordinate) {
+        String ext = "jar";
+        int at = coordinate.indexOf('@');
+        if (at >= 0) {
+            ext = coordinate.substring(at + 1);
+            coordinate = coordinate.substring(0, at);
+        }
+
+        String[] parts = coordinate.split(":");
+        if (parts.length < 3) return null;
+
+        String group = parts[0].replace('.', '/');
+        String artifact = parts[1];
+        String version = parts[2];
+        String classifier = parts.length > 3 ? "-" + parts[3] : "";
+
+        return group + "/" + artifact + "/" + version + "/" + artifact + "-" + version + classifier + "." + ext;
+    }
+
+    private static String withTrailingSlash(String url) {
+        return url.endsWith("/") ? url : url + "/";
+    }
+}
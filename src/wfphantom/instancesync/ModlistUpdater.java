@@ -5,19 +5,94 @@ import com.google.gson.stream.JsonReader;
 import com.moandjiezana.toml.Toml;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static wfphantom.instancesync.InstanceSync.MODLIST;
 
 public class ModlistUpdater {
+    private static final int PROBE_THREADS = 32;
+    private static final long DEBOUNCE_MILLIS = 300;
+
+    /**
+     * One content folder of the modlist: the row parsed from each of its TOMLs, and the rows as they are in the modlist.
+     */
+    private static final class Category {
+        final String name;
+        final Path tomlDir;
+        final Path contentDir;
+        final Map<Path, String[]> fresh = new HashMap<>();
+        List<String[]> rows = new ArrayList<>();
+
+        Category(String name, Path tomlDir, Path contentDir) {
+            this.name = name;
+            this.tomlDir = tomlDir.toAbsolutePath().normalize();
+            this.contentDir = contentDir.toAbsolutePath().normalize();
+        }
+
+        void readTomls(List<String> missingIds) {
+            if (!Files.isDirectory(tomlDir)) {
+                fresh.clear();
+                return;
+            }
+            fresh.keySet().removeIf(tomlPath -> !Files.exists(tomlPath));
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(tomlDir, "*.toml")) {
+                for (Path tomlPath : stream) {
+                    readToml(tomlPath, missingIds);
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to read TOMLs in " + tomlDir + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Only a deleted TOML drops its row. One that fails to parse is usually still being written,
+         * so the row parsed from it before is kept along with the side and stamp in the modlist.
+         */
+        void readToml(Path tomlPath, List<String> missingIds) {
+            if (!Files.exists(tomlPath)) {
+                fresh.remove(tomlPath);
+                return;
+            }
+            String[] row = Files.isRegularFile(tomlPath) ? readAddonRowFromToml(tomlPath, name, missingIds) : null;
+            if (row != null) fresh.put(tomlPath, row);
+        }
+
+        /**
+         * Brings the rows in line with the parsed TOMLs and the files on disk.
+         */
+        void apply() {
+            // Copies, the rows are changed in place later on
+            List<String[]> freshRows = new ArrayList<>();
+            for (String[] row : fresh.values()) {
+                freshRows.add(row.clone());
+            }
+            updateCategoryInPlace(rows, freshRows);
+            syncDisabledState(contentDir, rows);
+            rows.sort(Comparator.comparing(a -> a[0].toLowerCase()));
+        }
+    }
+
     public static void run(String[] args) {
         Path jarDir = getJarDir();
         Path modsIndexDir = jarDir.resolve(Path.of("mods", ".index"));
@@ -35,87 +110,256 @@ public class ModlistUpdater {
                 System.out.println("Invalid arg: use --indexDir=<path>; using default mods/.index");
             }
         }
-        String[] loader = detectLoaderFromMmcPack(jarDir);
-        runWithModsIndexDir(modsIndexDir, loader);
+        boolean validate = true;
+        boolean watch = false;
+        for (String arg : args) {
+            if (arg != null && arg.equalsIgnoreCase("--noValidate")) validate = false;
+            if (arg != null && arg.equalsIgnoreCase("--watch")) watch = true;
+        }
+        DownloadManager.Options validation = validate ? InstanceSync.parseDownloadOptions(jarDir.toFile(), args) : null;
+        runWithModsIndexDir(modsIndexDir, jarDir, validation, watch);
     }
 
-    private static void runWithModsIndexDir(Path modsIndexDir, String[] loader) {
+    private static void runWithModsIndexDir(Path modsIndexDir, Path jarDir, DownloadManager.Options validation, boolean watch) {
         if (!Files.isDirectory(modsIndexDir)) {
             System.out.println("No mods index dir found at \"" + modsIndexDir + "\", aborting");
             return;
         }
+        String[] loader = detectLoaderFromMmcPack(jarDir);
         if (loader == null) loader = new String[]{"", ""};
-        List<String> missingIds = new ArrayList<>();
-        List<String[]> freshMods = readAddonRowsFromTomlDir(modsIndexDir, "mods", missingIds);
-        Path shaderpacksDir = Path.of("shaderpacks");
-        List<String[]> freshShaderpacks = Files.isDirectory(shaderpacksDir) ? readAddonRowsFromTomlDir(shaderpacksDir, "shaderpacks", missingIds) : new ArrayList<>();
-        Path resourcepacksDir = Path.of("resourcepacks");
-        List<String[]> freshResourcepacks = Files.isDirectory(resourcepacksDir) ? readAddonRowsFromTomlDir(resourcepacksDir, "resourcepacks", missingIds) : new ArrayList<>();
-        Path datapacksDir = Path.of("datapacks");
-        List<String[]> freshDatapacks = Files.isDirectory(datapacksDir) ? readAddonRowsFromTomlDir(datapacksDir, "datapacks", missingIds) : new ArrayList<>();
+        List<Category> categories = List.of(
+                new Category("mods", modsIndexDir, Path.of("mods")),
+                new Category("shaderpacks", Path.of("shaderpacks"), Path.of("shaderpacks")),
+                new Category("resourcepacks", Path.of("resourcepacks"), Path.of("resourcepacks")),
+                new Category("datapacks", Path.of("datapacks"), Path.of("datapacks")));
         Path modlistPath = Path.of(MODLIST);
-        List<String[]> modsRows;
-        List<String[]> shaderpackRows;
-        List<String[]> resourcepackRows;
-        List<String[]> datapackRows;
-        if (Files.isRegularFile(modlistPath)) {
-            try {
-                JsonObject existing = readModlistObjectSkippingFirstLineComment(modlistPath);
-                modsRows = readRowsFromCategory(existing, "mods");
-                shaderpackRows = readRowsFromCategory(existing, "shaderpacks");
-                resourcepackRows = readRowsFromCategory(existing, "resourcepacks");
-                datapackRows = readRowsFromCategory(existing, "datapacks");
-                updateCategoryInPlace(modsRows, freshMods);
-                updateCategoryInPlace(shaderpackRows, freshShaderpacks);
-                updateCategoryInPlace(resourcepackRows, freshResourcepacks);
-                updateCategoryInPlace(datapackRows, freshDatapacks);
-            } catch (Exception e) {
-                System.out.println("Failed to read existing modlist, regenerating: " + e.getMessage());
-                modsRows = freshMods;
-                shaderpackRows = freshShaderpacks;
-                resourcepackRows = freshResourcepacks;
-                datapackRows = freshDatapacks;
+
+        List<String> missingIds = new ArrayList<>();
+        for (Category category : categories) {
+            category.readTomls(missingIds);
+        }
+        readModlistRows(modlistPath, categories);
+        for (Category category : categories) {
+            category.apply();
+        }
+        byte[] written = validateAndWrite(modlistPath, loader, categories, validation);
+        printMissingIds(missingIds);
+
+        if (watch) watch(modlistPath, jarDir, loader, categories, validation, written);
+    }
+
+    /**
+     * Keeps the modlist up to date until the process is stopped. Only the TOMLs that changed are parsed again,
+     * the modlist itself is only read again when it was edited by hand (like changing a side), and the loader
+     * when mmc-pack.json changes.
+     */
+    private static void watch(Path modlistPath, Path jarDir, String[] loader, List<Category> categories, DownloadManager.Options validation, byte[] written) {
+        Path root = Path.of("").toAbsolutePath();
+        Path modlist = modlistPath.toAbsolutePath().normalize();
+        Path mmcPack = jarDir.getParent() == null ? null : jarDir.getParent().resolve("mmc-pack.json").toAbsolutePath().normalize();
+        try (WatchService watcher = root.getFileSystem().newWatchService()) {
+            Map<WatchKey, Path> keys = new HashMap<>();
+            register(watcher, keys, root);
+            if (mmcPack != null) register(watcher, keys, mmcPack.getParent());
+            for (Category category : categories) {
+                register(watcher, keys, category.tomlDir);
+                register(watcher, keys, category.contentDir);
             }
-        } else {
-            modsRows = freshMods;
-            shaderpackRows = freshShaderpacks;
-            resourcepackRows = freshResourcepacks;
-            datapackRows = freshDatapacks;
-        }
-        syncDisabledState(Path.of("mods"), modsRows);
-        syncDisabledState(shaderpacksDir, shaderpackRows);
-        syncDisabledState(resourcepacksDir, resourcepackRows);
-        syncDisabledState(datapacksDir, datapackRows);
-        modsRows.sort(Comparator.comparing(a -> a[0].toLowerCase()));
-        shaderpackRows.sort(Comparator.comparing(a -> a[0].toLowerCase()));
-        resourcepackRows.sort(Comparator.comparing(a -> a[0].toLowerCase()));
-        datapackRows.sort(Comparator.comparing(a -> a[0].toLowerCase()));
+            System.out.println("\nWatching for changes, press Ctrl+C to stop");
+
+            while (true) {
+                Set<Category> changed = new HashSet<>();
+                Set<Path> changedTomls = new HashSet<>();
+                List<String> missingIds = new ArrayList<>();
+                boolean modlistEdited = false;
+                boolean mmcPackEdited = false;
+
+                // packwiz touches many files per command, wait for it to finish before writing
+                WatchKey key = watcher.take();
+                try {
+                    while (key != null) {
+                        Path dir = keys.get(key);
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (dir == null) continue;
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                for (Category category : categories) {
+                                    if (category.tomlDir.equals(dir)) category.readTomls(missingIds);
+                                    if (category.tomlDir.equals(dir) || category.contentDir.equals(dir)) changed.add(category);
+                                }
+                                if (dir.equals(root)) modlistEdited = true;
+                                continue;
+                            }
+
+                            Path path = dir.resolve((Path) event.context());
+                            if (path.equals(modlist)) {
+                                modlistEdited = true;
+                                continue;
+                            }
+                            if (path.equals(mmcPack)) {
+                                mmcPackEdited = true;
+                                continue;
+                            }
+                            for (Category category : categories) {
+                                if (path.equals(category.tomlDir) || path.equals(category.contentDir)) {
+                                    // Folder created or deleted after the watch started
+                                    registerCreated(watcher, keys, path);
+                                    if (path.equals(category.tomlDir)) category.readTomls(missingIds);
+                                    changed.add(category);
+                                }
+                                if (dir.equals(category.tomlDir) && path.getFileName().toString().endsWith(".toml")) {
+                                    changedTomls.add(path);
+                                    changed.add(category);
+                                } else if (dir.equals(category.contentDir)) {
+                                    changed.add(category);
+                                }
+                            }
+                        }
+                        if (!key.reset()) keys.remove(key);
+                        key = watcher.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+
+                    // Parsed once things settled, a TOML can be seen half written when it's created
+                    for (Path path : changedTomls) {
+                        for (Category category : categories) {
+                            if (path.getParent().equals(category.tomlDir)) category.readToml(path, missingIds);
+                        }
+                    }
+
+                    if (modlistEdited) {
+                        byte[] current = Files.isRegularFile(modlistPath) ? Files.readAllBytes(modlistPath) : null;
+                        if (Arrays.equals(current, written)) {
+                            modlistEdited = false;
+                        } else {
+                            System.out.println("\n" + MODLIST + " was edited, reloading it");
+                            readModlistRows(modlistPath, categories);
+                            changed.addAll(categories);
+                        }
+                    }
+                    boolean loaderChanged = false;
+                    if (mmcPackEdited) {
+                        // Keeps the loader from before while mmc-pack.json is missing or half written
+                        String[] current = detectLoaderFromMmcPack(jarDir);
+                        if (current != null && !Arrays.equals(current, loader)) {
+                            System.out.println("\nmmc-pack.json changed, the loader is now " + current[0] + " " + current[1]);
+                            loader = current;
+                            loaderChanged = true;
+                        }
+                    }
+                    if (changed.isEmpty() && !loaderChanged) continue;
+
+                    if (!modlistEdited && !loaderChanged) System.out.println();
+                    for (Category category : changed) {
+                        category.apply();
+                    }
+                    written = validateAndWrite(modlistPath, loader, categories, validation);
+                    printMissingIds(missingIds);
+                } catch (IOException e) {
+                    // Like the modlist being replaced while it's read, the next change writes it again
+                    System.out.println("Failed to update the modlist, still watching: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to watch for changes: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Watches a folder created after the watch started. It can be gone again before it's registered,
+     * it's then picked up when it's created next.
+     */
+    private static void registerCreated(WatchService watcher, Map<WatchKey, Path> keys, Path dir) {
+        try {
+            register(watcher, keys, dir);
+        } catch (IOException e) {
+            System.out.println("Failed to watch " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns whether the folder is now watched, false if it doesn't exist.
+     */
+    private static boolean register(WatchService watcher, Map<WatchKey, Path> keys, Path dir) throws IOException {
+        if (!Files.isDirectory(dir) || keys.containsValue(dir)) return false;
+        WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        keys.put(key, dir);
+        return true;
+    }
+
+    private static void readModlistRows(Path modlistPath, List<Category> categories) {
+        for (Category category : categories) {
+            category.rows = new ArrayList<>();
+        }
+        if (!Files.isRegularFile(modlistPath)) return;
+        try {
+            JsonObject existing = readModlistObjectSkippingFirstLineComment(modlistPath);
+            for (Category category : categories) {
+                category.rows = readRowsFromCategory(existing, category.name);
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to read existing modlist, regenerating: " + e.getMessage());
+            for (Category category : categories) {
+                category.rows = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Validates the rows if enabled and writes the modlist if it changed. Returns the bytes the modlist now has.
+     */
+    private static byte[] validateAndWrite(Path modlistPath, String[] loader, List<Category> categories, DownloadManager.Options validation) {
+        List<String> deadEntries = new ArrayList<>();
+        if (validation != null) {
+            Map<String, List<String[]>> rows = new LinkedHashMap<>();
+            for (Category category : categories) {
+                rows.put(category.name, category.rows);
+            }
+            validateRows(rows, validation, deadEntries);
+        }
+
         Gson gson = new Gson();
-        try (BufferedWriter out = Files.newBufferedWriter(modlistPath, StandardCharsets.UTF_8)) {
-            out.write("// [filename, project-id/mod-id, file-id/version, side]\n");
-            out.write("{\n");
-            out.write("\"loader\": [");
-            out.write(gson.toJson(loader[0]));
-            out.write(", ");
-            out.write(gson.toJson(loader[1]));
-            out.write("],\n");
-            out.write("\"mods\":[\n");
-            writeRows(out, gson, modsRows);
-            out.write("],\n");
-            out.write("\"shaderpacks\":[\n");
-            writeRows(out, gson, shaderpackRows);
-            out.write("],\n");
-            out.write("\"resourcepacks\":[\n");
-            writeRows(out, gson, resourcepackRows);
-            out.write("],\n");
-            out.write("\"datapacks\":[\n");
-            writeRows(out, gson, datapackRows);
-            out.write("]\n");
-            out.write("}");
-            System.out.println("Wrote modlist to: " + modlistPath.toAbsolutePath());
+        StringBuilder out = new StringBuilder();
+        out.append("// [filename, project-id/mod-id, file-id/version, side, host, size]\n");
+        out.append("{\n");
+        out.append("\"loader\": [");
+        out.append(gson.toJson(loader[0]));
+        out.append(", ");
+        out.append(gson.toJson(loader[1]));
+        out.append("],\n");
+        for (int i = 0; i < categories.size(); i++) {
+            Category category = categories.get(i);
+            out.append("\"").append(category.name).append("\":[\n");
+            writeRows(out, gson, category.rows);
+            out.append(i < categories.size() - 1 ? "],\n" : "]\n");
+        }
+        out.append("}");
+        byte[] bytes = out.toString().getBytes(StandardCharsets.UTF_8);
+
+        try {
+            if (Files.isRegularFile(modlistPath) && Arrays.equals(Files.readAllBytes(modlistPath), bytes)) {
+                System.out.println("Modlist is already up to date: " + modlistPath.toAbsolutePath());
+            } else {
+                // Write next to it and swap, so the launcher or git never see a half written modlist
+                Path tmp = modlistPath.resolveSibling(MODLIST + ".tmp");
+                Files.write(tmp, bytes);
+                Files.move(tmp, modlistPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                System.out.println("Wrote modlist to: " + modlistPath.toAbsolutePath());
+            }
         } catch (IOException e) {
             System.out.println("Failed to write modlist: " + e.getMessage());
         }
+
+        if (!deadEntries.isEmpty()) {
+            System.out.println("\nWARNING: entries that could not be downloaded from any host, fix these before committing:");
+            for (String s : deadEntries) {
+                System.out.println(s);
+            }
+        }
+        return bytes;
+    }
+
+    private static void printMissingIds(List<String> missingIds) {
         if (!missingIds.isEmpty()) {
             System.out.println("\nEntries missing ids (skipped):");
             for (String s : missingIds) {
@@ -123,6 +367,110 @@ public class ModlistUpdater {
             }
         }
     }
+
+    /**
+     * Probes every row that hasn't been validated yet (new, changed, or from before validation existed)
+     * with a HEAD request, and stamps it with the host that serves it and the file size.
+     */
+    private static void validateRows(Map<String, List<String[]>> categories, DownloadManager.Options options, List<String> deadEntries) {
+        record Probe(String category, List<String[]> rows, int index) {}
+
+        List<Probe> probes = new ArrayList<>();
+        for (Map.Entry<String, List<String[]>> category : categories.entrySet()) {
+            List<String[]> rows = category.getValue();
+            for (int i = 0; i < rows.size(); i++) {
+                String[] r = rows.get(i);
+                if (r.length < 6 || r[4] == null || r[4].isBlank()) probes.add(new Probe(category.getKey(), rows, i));
+            }
+        }
+        if (probes.isEmpty()) {
+            System.out.println("All entries already validated");
+            return;
+        }
+
+        System.out.println("Validating " + probes.size() + " new or changed entries");
+        long time = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(PROBE_THREADS, probes.size()));
+        try {
+            List<Future<String[]>> results = new ArrayList<>();
+            for (Probe probe : probes) {
+                String[] row = probe.rows().get(probe.index());
+                results.add(executor.submit(() -> probeRow(probe.category(), row, options, deadEntries)));
+            }
+            for (int i = 0; i < probes.size(); i++) {
+                Probe probe = probes.get(i);
+                try {
+                    String[] stamped = results.get(i).get();
+                    if (stamped != null) probe.rows().set(probe.index(), stamped);
+                } catch (ExecutionException e) {
+                    synchronized (deadEntries) {
+                        deadEntries.add(probe.category() + ": " + probe.rows().get(probe.index())[0] + " (" + e.getCause().getMessage() + ")");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        float secs = (float) (System.currentTimeMillis() - time) / 1000F;
+        System.out.printf("Validated %d entries (Took %.2fs)%n", probes.size(), secs);
+    }
+
+    /**
+     * Returns the row stamped with the first host that serves it, or null if none did.
+     */
+    private static String[] probeRow(String category, String[] row, DownloadManager.Options options, List<String> deadEntries) {
+        String filename = row[0].endsWith(".disabled") ? row[0].substring(0, row[0].length() - ".disabled".length()) : row[0];
+        DownloadManager.CdnHosts hosts = options.hosts();
+
+        Map<String, String> candidates = new LinkedHashMap<>();
+        if (InstanceSync.isDigitsOnly(row[1]) && InstanceSync.isDigitsOnly(row[2])) {
+            long fileId = Long.parseLong(row[2]);
+            candidates.put(DownloadManager.HOST_MEDIAFILEZ, DownloadManager.constructCurseForgeDownloadUrl(hosts.curseforge(), fileId, filename));
+            candidates.put(DownloadManager.HOST_EDGE, DownloadManager.constructCurseForgeDownloadUrl(hosts.curseforgeFallback(), fileId, filename));
+        } else {
+            candidates.put(DownloadManager.HOST_MODRINTH, DownloadManager.constructModrinthDownloadUrl(hosts.modrinth(), row[1], row[2], filename));
+        }
+
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, String> candidate : candidates.entrySet()) {
+            try {
+                long size = head(candidate.getValue(), options);
+                return new String[]{row[0], row[1], row[2], row[3], candidate.getKey(), size < 0 ? "" : String.valueOf(size)};
+            } catch (FileNotFoundException e) {
+                failures.add("404 at " + candidate.getValue());
+            } catch (IOException e) {
+                failures.add(e.getMessage() + " at " + candidate.getValue());
+            }
+        }
+        synchronized (deadEntries) {
+            deadEntries.add(category + ": " + row[0] + " (" + String.join(", ", failures) + ")");
+        }
+        return null;
+    }
+
+    /**
+     * Returns the content length of a URL without downloading it, or -1 if the server doesn't say.
+     */
+    private static long head(String url, DownloadManager.Options options) throws IOException {
+        URLConnection connection = URI.create(url).toURL().openConnection();
+        connection.setConnectTimeout(options.connectTimeoutMillis());
+        connection.setReadTimeout(options.readTimeoutMillis());
+
+        if (!(connection instanceof HttpURLConnection http)) throw new IOException("Not an HTTP URL: " + url);
+        try {
+            http.setRequestMethod("HEAD");
+            int code = http.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE) throw new FileNotFoundException(url);
+            if (code >= 400) throw new IOException("HTTP " + code);
+            return http.getContentLengthLong();
+        } finally {
+            http.disconnect();
+        }
+    }
     private static String[] detectLoaderFromMmcPack(Path jarDir) {
         try {
             Path parent = jarDir == null ? null : jarDir.getParent();
@@ -193,6 +541,10 @@ public class ModlistUpdater {
             return path.toAbsolutePath();
         }
     }
+    /**
+     * Updates the ids and filenames of existing rows from the TOMLs, keeping their order and sides.
+     * A row whose file changed loses its validation stamp.
+     */
     private static void updateCategoryInPlace(List<String[]> existingRows, List<String[]> freshRows) {
         Map<String, Integer> existingById1 = new HashMap<>();
         for (int i = 0; i < existingRows.size(); i++) {
@@ -210,6 +562,11 @@ public class ModlistUpdater {
             Integer idx = existingById1.get(id1);
             if (idx != null) {
                 String[] existing = existingRows.get(idx);
+                String existingName = existing[0].endsWith(".disabled") ? existing[0].substring(0, existing[0].length() - ".disabled".length()) : existing[0];
+                if (existing.length > 4 && (!existingName.equals(fresh[0]) || !existing[2].equals(fresh[2]))) {
+                    existing = new String[]{existing[0], existing[1], existing[2], existing[3]};
+                    existingRows.set(idx, existing);
+                }
                 existing[0] = fresh[0];
                 existing[1] = fresh[1];
                 existing[2] = fresh[2];
@@ -243,55 +600,53 @@ public class ModlistUpdater {
             String id2 = r.get(2).getAsString();
             String side = r.get(3).getAsString();
 
-            rows.add(new String[]{filename, id1, id2, side});
+            if (r.size() >= 6) {
+                rows.add(new String[]{filename, id1, id2, side, r.get(4).getAsString(), r.get(5).getAsString()});
+            } else {
+                rows.add(new String[]{filename, id1, id2, side});
+            }
         }
         return rows;
     }
-    private static List<String[]> readAddonRowsFromTomlDir(Path tomlDir, String categoryName, List<String> missingIds) {
-        List<String[]> rows = new ArrayList<>();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tomlDir, "*.toml")) {
-            for (Path tomlPath : stream) {
-                try (Reader reader = Files.newBufferedReader(tomlPath, StandardCharsets.UTF_8)) {
-                    Toml toml = new Toml().read(reader);
-                    String filename = toml.getString("filename");
-                    if (filename == null || filename.isBlank()) {
-                        System.out.println("Skipping (missing filename): " + tomlPath);
-                        continue;
-                    }
-                    String sideRaw = toml.getString("side");
-                    String side = (sideRaw == null || sideRaw.isBlank()) ? "both" : sideRaw;
-                    Toml update = toml.getTable("update");
-                    Toml curseforge = update == null ? null : update.getTable("curseforge");
-                    Toml modrinth = update == null ? null : update.getTable("modrinth");
-                    if (curseforge != null) {
-                        Long projectId = curseforge.getLong("project-id");
-                        Long fileId = curseforge.getLong("file-id");
-                        if (projectId == null || fileId == null) {
-                            missingIds.add(categoryName + ": " + filename + " (missing update.curseforge.project-id/file-id)");
-                            continue;
-                        }
-                        rows.add(new String[]{filename, projectId.toString(), fileId.toString(), side});
-                        continue;
-                    }
-                    if (modrinth != null) {
-                        String modId = modrinth.getString("mod-id");
-                        String version = modrinth.getString("version");
-                        if (modId == null || modId.isBlank() || version == null || version.isBlank()) {
-                            missingIds.add(categoryName + ": " + filename + " (missing update.modrinth.mod-id/version)");
-                            continue;
-                        }
-                        rows.add(new String[]{filename, modId, version, side});
-                        continue;
-                    }
-                    missingIds.add(categoryName + ": " + filename + " (missing [update.curseforge] or [update.modrinth])");
-                } catch (Exception e) {
-                    System.out.println("Failed to parse: " + tomlPath + " (" + e.getMessage() + ")");
+    /**
+     * Returns the row for one TOML, or null if it can't be used.
+     */
+    private static String[] readAddonRowFromToml(Path tomlPath, String categoryName, List<String> missingIds) {
+        try (Reader reader = Files.newBufferedReader(tomlPath, StandardCharsets.UTF_8)) {
+            Toml toml = new Toml().read(reader);
+            String filename = toml.getString("filename");
+            if (filename == null || filename.isBlank()) {
+                System.out.println("Skipping (missing filename): " + tomlPath);
+                return null;
+            }
+            String sideRaw = toml.getString("side");
+            String side = (sideRaw == null || sideRaw.isBlank()) ? "both" : sideRaw;
+            Toml update = toml.getTable("update");
+            Toml curseforge = update == null ? null : update.getTable("curseforge");
+            Toml modrinth = update == null ? null : update.getTable("modrinth");
+            if (curseforge != null) {
+                Long projectId = curseforge.getLong("project-id");
+                Long fileId = curseforge.getLong("file-id");
+                if (projectId == null || fileId == null) {
+                    missingIds.add(categoryName + ": " + filename + " (missing update.curseforge.project-id/file-id)");
+                    return null;
                 }
+                return new String[]{filename, projectId.toString(), fileId.toString(), side};
             }
-        } catch (IOException e) {
-            System.out.println("Failed to read TOMLs in " + tomlDir + ": " + e.getMessage());
+            if (modrinth != null) {
+                String modId = modrinth.getString("mod-id");
+                String version = modrinth.getString("version");
+                if (modId == null || modId.isBlank() || version == null || version.isBlank()) {
+                    missingIds.add(categoryName + ": " + filename + " (missing update.modrinth.mod-id/version)");
+                    return null;
+                }
+                return new String[]{filename, modId, version, side};
+            }
+            missingIds.add(categoryName + ": " + filename + " (missing [update.curseforge] or [update.modrinth])");
+        } catch (Exception e) {
+            System.out.println("Failed to parse: " + tomlPath + " (" + e.getMessage() + ")");
         }
-        return rows;
+        return null;
     }
     private static void syncDisabledState(Path contentDir, List<String[]> rows) {
         if (!Files.isDirectory(contentDir) || rows.isEmpty()) return;
@@ -326,20 +681,26 @@ public class ModlistUpdater {
             }
         }
     }
-    private static void writeRows(BufferedWriter out, Gson gson, List<String[]> rows) throws IOException {
+    private static void writeRows(StringBuilder out, Gson gson, List<String[]> rows) {
         for (int i = 0; i < rows.size(); i++) {
             String[] r = rows.get(i);
-            out.write("  [");
-            out.write(gson.toJson(r[0]));
-            out.write(", ");
-            out.write(gson.toJson(r[1]));
-            out.write(", ");
-            out.write(gson.toJson(r[2]));
-            out.write(", ");
-            out.write(gson.toJson(r[3]));
-            out.write("]");
-            if (i < rows.size() - 1) out.write(",");
-            out.write("\n");
+            out.append("  [");
+            out.append(gson.toJson(r[0]));
+            out.append(", ");
+            out.append(gson.toJson(r[1]));
+            out.append(", ");
+            out.append(gson.toJson(r[2]));
+            out.append(", ");
+            out.append(gson.toJson(r[3]));
+            if (r.length >= 6) {
+                out.append(", ");
+                out.append(gson.toJson(r[4]));
+                out.append(", ");
+                out.append(gson.toJson(r[5]));
+            }
+            out.append("]");
+            if (i < rows.size() - 1) out.append(",");
+            out.append("\n");
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,205 @@
+package wfphantom.instancesync;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import wfphantom.instancesync.Instance.Addon;
+
+/**
+ * In-process entry point for tools that sync instances without spawning a JVM per instance.
+ * <p>
+ * One engine owns a download pool and a disk writer that every sync it runs shares, so many instances can be
+ * synced concurrently without each one opening its own set of connections or writing on its own threads.
+ * Close it once it's no longer needed.
+ * <pre>
+ * try (SyncEngine engine = new SyncEngine()) {
+ *     SyncEngine.Result result = engine.sync(instanceRoot, SyncEngine.Side.CLIENT, SyncEngine.options()).join();
+ * }
+ * </pre>
+ */
+public final class SyncEngine implements AutoCloseable {
+    /**
+     * Which files of the modlist to download, same as the {@code --option} choices.
+     */
+    public enum Side {
+        ALL("all"),
+        CLIENT("client"),
+        SERVER("server"),
+        CLIENT_ONLY("client-only"),
+        SERVER_ONLY("server-only"),
+        BOTH_ONLY("both-only");
+
+        private final String id;
+
+        Side(String id) {
+            this.id = id;
+        }
+
+        public String id() {
+            return id;
+        }
+    }
+
+    public record Result(List<DownloadManager.Outcome> files, long millis) {
+        public long count(DownloadManager.Status status) {
+            return files.stream().filter(f -> f.status() == status).count();
+        }
+    }
+
+    private final ExecutorService downloads;
+    private final DiskWriter diskWriter;
+    private final ExecutorService syncs;
+    private final Map<Path, Object> instanceLocks = new ConcurrentHashMap<>();
+
+    public SyncEngine() {
+        this(DownloadManager.Options.DEFAULT.networkThreads(), DownloadManager.Options.DEFAULT.diskThreads(),
+                DownloadManager.Options.DEFAULT.maxBufferedBytes());
+    }
+
+    /**
+     * @param networkThreads   downloads running at once across every sync of this engine
+     * @param diskThreads      files being written at once, 1 serializes all writes for spinning disks
+     * @param maxBufferedBytes bytes downloaded but not yet written before downloads wait for the disk
+     */
+    public SyncEngine(int networkThreads, int diskThreads, long maxBufferedBytes) {
+        downloads = Executors.newFixedThreadPool(networkThreads, daemonThreads("instancesync-download"));
+        diskWriter = new DiskWriter(diskThreads, maxBufferedBytes);
+        syncs = Executors.newCachedThreadPool(daemonThreads("instancesync-sync"));
+    }
+
+    /**
+     * Network options parsed from the command line args (like {@code --deadline=60}), usable for any number of
+     * instances. The deadline starts counting from this call.
+     * <p>
+     * Thread and buffer args are rejected, those are set once for the whole engine through its constructor.
+     * {@code --cacheDir} is too, every instance stages into and routes from its own {@code .instancesync} folder.
+     */
+    public static DownloadManager.Options options(String... args) {
+        for (String arg : args) {
+            if (arg.startsWith("--networkThreads=") || arg.startsWith("--diskThreads=") || arg.startsWith("--maxBufferedMB=")) {
+                throw new IllegalArgumentException(arg + " is set per engine, pass it to the SyncEngine constructor instead");
+            }
+            if (arg.startsWith("--cacheDir=")) {
+                throw new IllegalArgumentException("--cacheDir can't be shared between instances, each one uses its own " + InstanceSync.CACHE_DIR);
+            }
+        }
+        return InstanceSync.parseDownloadOptions(null, args);
+    }
+
+    /**
+     * The loader library options the command line would use for an instance, or null if the args don't
+     * include {@code --prefetchLibraries}.
+     */
+    public static LoaderLibraries.Options libraries(Path instanceRoot, String... args) {
+        return InstanceSync.parseLibraryOptions(instanceRoot.toFile(), args);
+    }
+
+    public CompletableFuture<Result> sync(Path instanceRoot, Side side, DownloadManager.Options options) {
+        return sync(instanceRoot, side, options, null);
+    }
+
+    /**
+     * Syncs the loader in mmc-pack.json and the content folders of an instance with its modlist.json, and prefetches
+     * the loader libraries unless {@code libraries} is null. Cancelling the returned future stops the sync at the
+     * next file boundary or read, anything not downloaded by then is left pending and nothing is renamed or deleted.
+     * A later sync of the same instance waits until the cancelled one has let go of it.
+     * <p>
+     * The staging cache and CDN routes are those of {@code instanceRoot}, so {@code options} must not carry any (see
+     * {@link #options}). Its thread and buffer settings are ignored, the engine's own are used.
+     */
+    public CompletableFuture<Result> sync(Path instanceRoot, Side side, DownloadManager.Options options, LoaderLibraries.Options libraries) {
+        if (options.cacheDir() != null || options.routes() != null) {
+            throw new IllegalArgumentException("Options carry an instance's staging cache or CDN routes, build them with SyncEngine.options");
+        }
+        AtomicBoolean cancelled = new AtomicBoolean();
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        future.whenComplete((result, e) -> {
+            if (future.isCancelled()) cancelled.set(true);
+        });
+
+        syncs.execute(() -> {
+            // A cancelled sync can still be finishing its current files, don't start another one in the same folder until it has
+            synchronized (instanceLocks.computeIfAbsent(instanceRoot.toAbsolutePath().normalize(), p -> new Object())) {
+                if (future.isDone()) return;
+                try {
+                    File dir = instanceRoot.toFile();
+                    JsonObject root = InstanceSync.readModlist(new File(dir, InstanceSync.MODLIST));
+                    DownloadManager.Options instanceOptions = options.forInstance(new File(dir, InstanceSync.CACHE_DIR),
+                            CdnRoutes.load(new File(dir, InstanceSync.ROUTES_FILE).toPath()));
+                    future.complete(run(dir, root, side.id(), instanceOptions, libraries, cancelled::get));
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Runs a sync on the calling thread, downloading on the shared pool.
+     */
+    Result run(File dir, JsonObject root, String selectedSide, DownloadManager.Options options, LoaderLibraries.Options libraries,
+               BooleanSupplier cancelled) {
+        long time = System.currentTimeMillis();
+        List<DownloadManager.Outcome> files = new ArrayList<>();
+
+        InstanceSync.syncMmcPackLoaderFromModlist(dir, root);
+        if (libraries != null && !cancelled.getAsBoolean()) files.addAll(InstanceSync.prefetchLoaderLibraries(dir, root, libraries, options, downloads, diskWriter, cancelled));
+
+        files.addAll(downloadCategory(root, "mods", new File(dir, "mods"), selectedSide, options, cancelled, "mods", ".jar"));
+        files.addAll(downloadCategory(root, "shaderpacks", new File(dir, "shaderpacks"), selectedSide, options, cancelled, "shaderpacks", ".zip"));
+        files.addAll(downloadCategory(root, "resourcepacks", new File(dir, "resourcepacks"), selectedSide, options, cancelled, "resourcepacks", ".zip"));
+        files.addAll(downloadCategory(root, "datapacks", new File(dir, "datapacks"), selectedSide, options, cancelled, "datapacks", ".zip"));
+        if (options.routes() != null) options.routes().save(InstanceSync.routePaths(root));
+
+        return new Result(files, System.currentTimeMillis() - time);
+    }
+
+    private List<DownloadManager.Outcome> downloadCategory(JsonObject root, String key, File targetDir, String selectedSide,
+                                                           DownloadManager.Options options, BooleanSupplier cancelled,
+                                                           String label, String... extensions) {
+        if (cancelled.getAsBoolean()) return List.of();
+        JsonArray rows = root.getAsJsonArray(key);
+        if (rows == null) {
+            System.out.println("No \"" + key + "\" section in modlist, skipping");
+            return List.of();
+        }
+
+        InstanceSync.ensureDirExists(targetDir);
+        List<Addon> addons = InstanceSync.parseAddonsFromRows(rows);
+        DownloadManager manager = new DownloadManager(targetDir, selectedSide, label, options, downloads, diskWriter, cancelled, extensions);
+        manager.downloadInstance(addons, rows);
+        return manager.outcomes();
+    }
+
+    @Override
+    public void close() {
+        syncs.shutdown();
+        downloads.shutdown();
+        diskWriter.close();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}